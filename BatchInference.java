@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+// inference for many robots in the same maze
+// all robots share one BlindRobotMazeProblem, so the transition model is built once;
+// 		the problem keeps no per-call state, so sequences can run on it concurrently.
+// sequences are scheduled on a fixed pool of threads.
+public class BatchInference {
+
+	public enum Mode { FILTER, SMOOTH, VITERBI }
+
+	private BlindRobotMazeProblem problem;
+	private ExecutorService pool;
+	private int threads;
+
+	// statistics of the last run
+	private int lastSequences;
+	private long lastSteps;
+	private long lastNanos;
+
+	public BatchInference(BlindRobotMazeProblem p, int threads) {
+		problem = p;
+		this.threads = Math.max(1, threads);
+		pool = Executors.newFixedThreadPool(this.threads);
+	}
+
+	// result for one robot
+	public static class Result {
+		public final int robot;
+		// FILTER and SMOOTH: P(Lt|...) at each step; VITERBI: the normalized max messages
+		public final ArrayList<double[][]> probDistr;
+		// VITERBI only
+		public final ViterbiDecoder.Result paths;
+		public final long nanos;
+
+		Result(int robot, ArrayList<double[][]> probDistr, ViterbiDecoder.Result paths, long nanos) {
+			this.robot = robot;
+			this.probDistr = probDistr;
+			this.paths = paths;
+			this.nanos = nanos;
+		}
+	}
+
+	// run mode on every sequence; results are in the order of sequences
+	public List<Result> run(List<int[]> sequences, final Mode mode) throws InterruptedException {
+		List<Callable<Result>> tasks = new ArrayList<Callable<Result>>(sequences.size());
+		long steps = 0;
+		for (int i = 0; i < sequences.size(); i++) {
+			final int robot = i;
+			final int[] colors = sequences.get(i);
+			steps += colors.length;
+			tasks.add(new Callable<Result>() {
+				public Result call() {
+					return infer(robot, colors, mode);
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		List<Future<Result>> futures = pool.invokeAll(tasks);
+		List<Result> results = new ArrayList<Result>(futures.size());
+		for (Future<Result> f: futures) {
+			try {
+				results.add(f.get());
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		lastNanos = System.nanoTime() - start;
+		lastSequences = sequences.size();
+		lastSteps = steps;
+		return results;
+	}
+
+	private Result infer(int robot, int[] colors, Mode mode) {
+		long start = System.nanoTime();
+		ArrayList<double[][]> probDistr = null;
+		ViterbiDecoder.Result paths = null;
+		switch (mode) {
+		case FILTER: probDistr = problem.getFilteredDistr(colors); break;
+		case SMOOTH: probDistr = problem.getProbDistr(colors); break;
+		case VITERBI:
+			probDistr = new ArrayList<double[][]>();
+			paths = problem.getViterbi(colors, probDistr);
+			break;
+		}
+		return new Result(robot, probDistr, paths, System.nanoTime() - start);
+	}
+
+	// sequences per second of the last run
+	public double getSequencesPerSecond() {
+		return lastNanos == 0 ? 0 : lastSequences * 1e9 / lastNanos;
+	}
+
+	// evidence steps per second of the last run
+	public double getStepsPerSecond() {
+		return lastNanos == 0 ? 0 : lastSteps * 1e9 / lastNanos;
+	}
+
+	public long getLastRunNanos() {
+		return lastNanos;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+}
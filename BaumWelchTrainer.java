@@ -0,0 +1,218 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+// EM (Baum-Welch) learning of the sensor confusion matrix and the motion slip
+// 		from logged color sequences of robots in the same maze
+// model: P(Lt|Lt-1) = slip * stay + (1 - slip) * (random action, blocked = stay)
+// 		  P(Ct|Lt) = confusion[color of Lt][Ct]
+// E-step: forward-backward on each sequence with the current parameters gives
+// 		P(Lk|c1:t), and the expected counts
+// 			N[c][s] = sum_k sum_{Lk of color c} P(Lk|c1:t), for ck = s
+// 			slips   = sum_k sum_x P(Lk-1 = x, slip at k|c1:t)
+// M-step: confusion[c][s] = N[c][s] / sum_s N[c][s], slip = slips / transitions
+// the sequences are split into chunks; each chunk runs on its own thread with its
+// 		own counts, and the counts are added up after all chunks are done.
+public class BaumWelchTrainer {
+
+	private Maze maze;
+	private ExecutorService pool;
+	private int threads;
+
+	// current parameters
+	private double[][] confusion;
+	private double slip;
+
+	// log P(c1:t) summed over the sequences, and sequences per second, for each iteration
+	private ArrayList<double[]> history = new ArrayList<double[]>();
+
+	public BaumWelchTrainer(Maze m, int threads) {
+		this(m, ConfusionSensorModel.symmetric(0.88, 0.04), 0.1, threads);
+	}
+
+	// confusion, slip: starting parameters; a slip of 0 is never moved by EM
+	public BaumWelchTrainer(Maze m, double[][] confusion, double slip, int threads) {
+		maze = m;
+		this.confusion = new double[Maze.NUM_COLORS + 1][];
+		for (int c = 0; c <= Maze.NUM_COLORS; c++)
+			this.confusion[c] = confusion[c].clone();
+		this.slip = slip;
+		this.threads = Math.max(1, threads);
+		pool = Executors.newFixedThreadPool(this.threads);
+	}
+
+	// expected counts of one chunk of sequences
+	private static class Counts {
+		// sensor[c][s]: expected number of readings s at locations of color c
+		double[][] sensor = new double[Maze.NUM_COLORS + 1][Maze.NUM_COLORS + 1];
+		double slips;
+		long transitions;
+		double logLikelihood;
+
+		void add(Counts o) {
+			for (int c = 0; c < sensor.length; c++)
+				for (int s = 0; s < sensor[c].length; s++)
+					sensor[c][s] += o.sensor[c][s];
+			slips += o.slips;
+			transitions += o.transitions;
+			logLikelihood += o.logLikelihood;
+		}
+	}
+
+	// run EM until maxIterations, or until log P(c1:t) grows by less than tolerance;
+	// 		prints one line per iteration when verbose
+	// returns the number of iterations run
+	public int train(List<int[]> sequences, int maxIterations, double tolerance, boolean verbose)
+			throws InterruptedException {
+		double last = Double.NEGATIVE_INFINITY;
+		int it;
+		for (it = 0; it < maxIterations; it++) {
+			long start = System.nanoTime();
+			Counts counts = expectation(sequences);
+			maximize(counts);
+			long nanos = System.nanoTime() - start;
+
+			double perSecond = nanos == 0 ? 0 : sequences.size() * 1e9 / nanos;
+			history.add(new double[] {counts.logLikelihood, perSecond});
+			if (verbose)
+				System.out.printf("iteration %d: log-likelihood %.4f, %.1f sequences/s, slip %.4f%n",
+						it + 1, counts.logLikelihood, perSecond, slip);
+
+			// log P(c1:t) of the parameters before this M-step
+			if (counts.logLikelihood - last < tolerance) {
+				it++;
+				break;
+			}
+			last = counts.logLikelihood;
+		}
+		return it;
+	}
+
+	// E-step over all sequences, one chunk per thread
+	private Counts expectation(List<int[]> sequences) throws InterruptedException {
+		final BlindRobotMazeProblem problem =
+				new BlindRobotMazeProblem(maze, new ConfusionSensorModel(confusion), slip);
+
+		List<Callable<Counts>> tasks = new ArrayList<Callable<Counts>>(threads);
+		int chunk = (sequences.size() + threads - 1) / threads;
+		for (int i = 0; i < sequences.size(); i += chunk) {
+			final List<int[]> part = sequences.subList(i, Math.min(sequences.size(), i + chunk));
+			tasks.add(new Callable<Counts>() {
+				public Counts call() {
+					Counts counts = new Counts();
+					for (int[] colors: part)
+						expect(problem, colors, counts);
+					return counts;
+				}
+			});
+		}
+
+		Counts total = new Counts();
+		for (Future<Counts> f: pool.invokeAll(tasks)) {
+			try {
+				total.add(f.get());
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		return total;
+	}
+
+	// forward-backward on one sequence, adding its expected counts to counts
+	private void expect(BlindRobotMazeProblem problem, int[] colors, Counts counts) {
+		int size = problem.getTransitionModel().size;
+		int t = colors.length;
+
+		// fv[k] = P(Lk|c1:k); log P(c1:t) = sum_k log P(ck|c1:k-1)
+		double[][] fv = new double[t + 1][];
+		fv[0] = problem.initialDistr();
+		for (int k = 1; k <= t; k++) {
+			fv[k] = new double[size];
+			counts.logLikelihood += Math.log(problem.filterStep(fv[k - 1], fv[k], colors[k - 1]));
+		}
+
+		// b = P(ck+1:t|Lk), scaled
+		double[] b = new double[size];
+		double[] tmp = new double[size];
+		for (int s = 0; s < size; s++)
+			b[s] = 1;
+
+		for (int k = t; k >= 1; k--) {
+			// P(Lk|c1:t) = alpha * P(Lk|c1:k) * P(ck+1:t|Lk)
+			double[] f = fv[k];
+			double sum = 0;
+			for (int s = 0; s < size; s++)
+				sum += f[s] * b[s];
+			for (int s = 0; s < size; s++)
+				counts.sensor[maze.getStateColor(s)][colors[k - 1]] += f[s] * b[s] / sum;
+
+			// after the step b = P(ck|Lk) * P(ck+1:t|Lk), tmp = P(ck:t|Lk-1) / sum(b)
+			problem.backwardStep(b, tmp, colors[k - 1]);
+
+			// P(Lk-1 = x, slip at k|c1:t) = alpha * P(Lk-1 = x|c1:k-1) * slip * b(x)
+			// 		alpha = 1 / sum_x P(Lk-1 = x|c1:k-1) * sum_y P(y|x) * b(y)
+			double bsum = 0;
+			for (int s = 0; s < size; s++)
+				bsum += b[s];
+			double[] prev = fv[k - 1];
+			double norm = 0;
+			double stay = 0;
+			for (int s = 0; s < size; s++) {
+				norm += prev[s] * tmp[s];
+				stay += prev[s] * b[s];
+			}
+			counts.slips += slip * stay / (norm * bsum);
+			counts.transitions++;
+
+			double[] swap = b;
+			b = tmp;
+			tmp = swap;
+			// the forward message is not needed any more
+			fv[k] = null;
+		}
+	}
+
+	private void maximize(Counts counts) {
+		for (int c = 0; c <= Maze.NUM_COLORS; c++) {
+			double sum = 0;
+			for (int s = 0; s <= Maze.NUM_COLORS; s++)
+				sum += counts.sensor[c][s];
+			// no location of this color was visited: keep the row
+			if (sum == 0)
+				continue;
+			for (int s = 0; s <= Maze.NUM_COLORS; s++)
+				confusion[c][s] = counts.sensor[c][s] / sum;
+		}
+		if (counts.transitions > 0)
+			slip = counts.slips / counts.transitions;
+	}
+
+	// P(C==s|color c) learned so far
+	public double[][] getConfusion() {
+		return confusion;
+	}
+
+	public double getSlip() {
+		return slip;
+	}
+
+	// a problem using the learned parameters
+	public BlindRobotMazeProblem getProblem() {
+		return new BlindRobotMazeProblem(maze, new ConfusionSensorModel(confusion), slip);
+	}
+
+	// {log-likelihood, sequences per second} for each iteration run
+	public List<double[]> getHistory() {
+		return history;
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+}
@@ -0,0 +1,226 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+// cache of filtered beliefs P(Lk|c1:k) shared by queries whose evidence has a common prefix
+// the beliefs of each model (BlindRobotMazeProblem.getModelKey: maze content, sensor
+// 		and slip) form a trie: the root holds P(L0), the child of a node for color c
+// 		holds the belief after reading c.
+// a root keeps the maze, slip and likelihood vectors of its model, and a query only
+// 		uses it when they match its problem: a key collision is filtered, not cached.
+// a query walks down the trie as far as its colors go, and only filters the rest;
+// 		the new beliefs are added to the trie.
+// nodes are kept in LRU order; a query touches its path from the deepest node up to
+// 		the root, so a node is never older than the nodes below it, and long shared
+// 		prefixes stay longest. when more than maxBytes are held, the least recently
+// 		used node is dropped with everything below it.
+// the trie is only touched under the cache lock, the filtering runs outside it.
+public class BeliefCache {
+
+	// bytes counted for a node besides its belief
+	static final int NODE_BYTES = 96;
+
+	private static class Node {
+		long key;
+		Node parent;
+		int color;
+		double[] belief;
+		Node[] children;
+		// roots: what the model is, shared with the problem that added it
+		Maze maze;
+		double slip;
+		double[][] likelihood;
+		// LRU list, most recent after head
+		Node prev;
+		Node next;
+	}
+
+	private long maxBytes;
+	private long bytes;
+	private int nodes;
+
+	// root of each model
+	private HashMap<Long, Node> roots = new HashMap<Long, Node>();
+	// sentinel of the LRU list
+	private Node head = new Node();
+
+	// filtering steps served from the cache, and computed
+	private long hits;
+	private long misses;
+
+	public BeliefCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		head.prev = head;
+		head.next = head;
+	}
+
+	// P(Lk|c1:k) for k = 0 ... colors.length, indexed by state
+	// the arrays are shared with the cache and other queries: do not modify them
+	public ArrayList<double[]> filter(BlindRobotMazeProblem p, int[] colors) {
+		ArrayList<double[]> beliefs = new ArrayList<double[]>(colors.length + 1);
+		long key = p.getModelKey();
+
+		synchronized (this) {
+			Node node = root(p, key);
+			if (node != null) {
+				beliefs.add(node.belief);
+				for (int color: colors) {
+					node = child(node, color);
+					if (node == null)
+						break;
+					beliefs.add(node.belief);
+				}
+			}
+			hits += beliefs.size();
+			misses += colors.length + 1 - beliefs.size();
+		}
+
+		// filter the rest from the longest cached prefix
+		if (beliefs.isEmpty())
+			beliefs.add(p.initialDistr());
+		for (int k = beliefs.size(); k <= colors.length; k++) {
+			double[] prob = new double[beliefs.get(k - 1).length];
+			p.filterStep(beliefs.get(k - 1), prob, colors[k - 1]);
+			beliefs.add(prob);
+		}
+
+		synchronized (this) {
+			insert(p, key, colors, beliefs);
+		}
+		return beliefs;
+	}
+
+	// root of the model of p, null if not cached or if the key is another model's
+	private Node root(BlindRobotMazeProblem p, long key) {
+		Node node = roots.get(key);
+		if (node == null || !p.sameModel(node.maze, node.slip, node.likelihood))
+			return null;
+		return node;
+	}
+
+	// child of node for color, null if not cached
+	private static Node child(Node node, int color) {
+		if (node.children == null || color < 0 || color >= node.children.length)
+			return null;
+		return node.children[color];
+	}
+
+	// add the missing nodes of the path and touch it, then evict down to maxBytes
+	private void insert(BlindRobotMazeProblem p, long key, int[] colors, ArrayList<double[]> beliefs) {
+		Node node = roots.get(key);
+		if (node == null) {
+			node = add(null, 0, beliefs.get(0));
+			node.key = key;
+			node.maze = p.getMaze();
+			node.slip = p.getSlip();
+			node.likelihood = p.getLikelihoods();
+			roots.put(key, node);
+		}
+		else if (!p.sameModel(node.maze, node.slip, node.likelihood))
+			return;
+		for (int k = 0; k < colors.length; k++) {
+			int color = colors[k];
+			// not a color of the maze: not cached
+			if (color < 0 || color > Maze.NUM_COLORS)
+				break;
+			Node next = child(node, color);
+			if (next == null) {
+				if (node.children == null)
+					node.children = new Node[Maze.NUM_COLORS + 1];
+				next = add(node, color, beliefs.get(k + 1));
+				node.children[color] = next;
+			}
+			node = next;
+		}
+
+		// deepest first, so that the root ends up the most recent
+		for (; node != null; node = node.parent)
+			touch(node);
+
+		while (bytes > maxBytes && head.prev != head)
+			remove(head.prev);
+	}
+
+	private Node add(Node parent, int color, double[] belief) {
+		Node node = new Node();
+		node.parent = parent;
+		node.color = color;
+		node.belief = belief;
+		node.prev = head;
+		node.next = head.next;
+		head.next.prev = node;
+		head.next = node;
+		bytes += NODE_BYTES + 8L * belief.length;
+		nodes++;
+		return node;
+	}
+
+	// move node to the front of the LRU list
+	private void touch(Node node) {
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = head;
+		node.next = head.next;
+		head.next.prev = node;
+		head.next = node;
+	}
+
+	// drop node and everything below it (no recursion, the trie can be deep)
+	private void remove(Node node) {
+		if (node.parent == null)
+			roots.remove(node.key);
+		else
+			node.parent.children[node.color] = null;
+
+		ArrayDeque<Node> stack = new ArrayDeque<Node>();
+		stack.push(node);
+		while (!stack.isEmpty()) {
+			Node n = stack.pop();
+			if (n.children != null)
+				for (Node c: n.children)
+					if (c != null)
+						stack.push(c);
+			n.prev.next = n.next;
+			n.next.prev = n.prev;
+			bytes -= NODE_BYTES + 8L * n.belief.length;
+			nodes--;
+		}
+	}
+
+	public synchronized void clear() {
+		roots.clear();
+		head.prev = head;
+		head.next = head;
+		bytes = 0;
+		nodes = 0;
+	}
+
+	// filtering steps (including P(L0)) found in the cache
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	// filtering steps (including P(L0)) that had to be computed
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized double getHitRate() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	// bytes held by the cached beliefs and their nodes (estimated)
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized int getNodeCount() {
+		return nodes;
+	}
+
+}
@@ -0,0 +1,9 @@
+
+
+// receives one belief P(Xk|...) per time step, in time order
+// belief is indexed by state (Maze.getState) and is only valid during the call
+public interface BeliefConsumer {
+
+	void accept(int k, double[] belief);
+
+}
@@ -0,0 +1,387 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+
+// binary file of a belief sequence P(L0|...), P(L1|...), ... over one maze
+// layout (big endian):
+// 		header: MAGIC, VERSION, width, height, number of states, maze content hash,
+// 			flags (FLOAT32), sparse threshold, legal bitmap (bit y * width + x, 8 per byte)
+// 		frames: one per step, in order
+// 			DENSE:  the value of every state (Maze.getState order)
+// 			SPARSE: number of entries, then (state - previous state as a varint, value)
+// 				for the states >= sparse threshold; the others read as 0
+// 			each frame takes the smaller of the two encodings, dense on a tie
+// 		index: file offset of every frame
+// 		trailer: index offset, number of frames, MAGIC
+// values are doubles, or floats with FLOAT32.
+// the reader reads the header and the index, and maps the frames once, in chunks of
+// 		whole frames; a frame is only decoded when it is read.
+public class BeliefFile {
+
+	static final int MAGIC = 0x424c4631;	// "BLF1"
+	static final int VERSION = 1;
+	static final int FLOAT32 = 1;
+
+	static final byte DENSE = 0;
+	static final byte SPARSE = 1;
+
+	// header without the legal bitmap
+	static final int HEADER_BYTES = 40;
+	static final int TRAILER_BYTES = 16;
+
+	// the frames are mapped in chunks of at most this many bytes (or one larger frame)
+	private static final long CHUNK = 1 << 30;
+
+	public static class Writer implements Closeable, BeliefConsumer {
+
+		private Maze maze;
+		private FileChannel channel;
+		private boolean float32;
+		private double threshold;
+
+		private ByteBuffer frame;
+		private long[] offsets = new long[64];
+		private int steps;
+
+		// float32: store floats instead of doubles
+		// sparseThreshold: values below it are dropped in sparse frames (0: lossless)
+		public Writer(String filename, Maze maze, boolean float32, double sparseThreshold) throws IOException {
+			this.maze = maze;
+			this.float32 = float32;
+			threshold = sparseThreshold;
+			channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			try {
+				int n = maze.getNumStates();
+				// a sparse frame is only used when smaller than a dense one
+				frame = ByteBuffer.allocate(1 + n * (float32 ? 4 : 8));
+
+				int cells = maze.width * maze.height;
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + (cells + 7) / 8);
+				header.putInt(MAGIC).putInt(VERSION).putInt(maze.width).putInt(maze.height).putInt(n)
+					.putLong(maze.getContentHash()).putInt(float32 ? FLOAT32 : 0).putDouble(threshold);
+				byte bits = 0;
+				for (int i = 0; i < cells; i++) {
+					if (maze.isLegal(i % maze.width, i / maze.width))
+						bits = (byte) (bits | 1 << (i & 7));
+					if ((i & 7) == 7) {
+						header.put(bits);
+						bits = 0;
+					}
+				}
+				if ((cells & 7) != 0)
+					header.put(bits);
+				header.flip();
+				writeFully(header);
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		// the next frame, indexed by state
+		public void write(double[] belief) throws IOException {
+			if (steps == offsets.length)
+				offsets = Arrays.copyOf(offsets, 2 * steps);
+			offsets[steps++] = channel.position();
+
+			int valueBytes = float32 ? 4 : 8;
+			int kept = 0;
+			// exact size of the sparse frame
+			long sparseBytes = 5;
+			int last = -1;
+			for (int s = 0; s < belief.length; s++)
+				if (belief[s] >= threshold && belief[s] != 0) {
+					kept++;
+					sparseBytes += varintBytes(s - last) + valueBytes;
+					last = s;
+				}
+
+			frame.clear();
+			if (sparseBytes < frame.capacity()) {
+				frame.put(SPARSE).putInt(kept);
+				int prev = -1;
+				for (int s = 0; s < belief.length; s++) {
+					if (belief[s] < threshold || belief[s] == 0)
+						continue;
+					putVarint(frame, s - prev);
+					putValue(frame, belief[s]);
+					prev = s;
+				}
+			}
+			else {
+				frame.put(DENSE);
+				for (double p: belief)
+					putValue(frame, p);
+			}
+			frame.flip();
+			writeFully(frame);
+		}
+
+		// the next frame as a [height][width] grid, as in getProbDistr
+		public void write(double[][] grid) throws IOException {
+			double[] belief = new double[maze.getNumStates()];
+			for (int s = 0; s < belief.length; s++)
+				belief[s] = grid[maze.getStateY(s)][maze.getStateX(s)];
+			write(belief);
+		}
+
+		// frames must come in order, as from BlindRobotMazeProblem.smooth
+		public void accept(int k, double[] belief) {
+			try {
+				write(belief);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private void putValue(ByteBuffer b, double p) {
+			if (float32)
+				b.putFloat((float) p);
+			else
+				b.putDouble(p);
+		}
+
+		private void writeFully(ByteBuffer b) throws IOException {
+			while (b.hasRemaining())
+				channel.write(b);
+		}
+
+		public int getSteps() {
+			return steps;
+		}
+
+		// writes the index and the trailer; does nothing once closed
+		public void close() throws IOException {
+			if (!channel.isOpen())
+				return;
+			try {
+				long indexOffset = channel.position();
+				ByteBuffer index = ByteBuffer.allocate(8 * steps + TRAILER_BYTES);
+				for (int i = 0; i < steps; i++)
+					index.putLong(offsets[i]);
+				index.putLong(indexOffset).putInt(steps).putInt(MAGIC);
+				index.flip();
+				writeFully(index);
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	public static class Reader implements Closeable {
+
+		private FileChannel channel;
+		// the frames, in chunks of whole frames: chunk c starts at frame chunkFirst[c]
+		private MappedByteBuffer[] chunks;
+		private int[] chunkFirst;
+
+		private int width;
+		private int height;
+		private int numStates;
+		private long mazeHash;
+		private boolean float32;
+		private double threshold;
+
+		// location y * width + x of each state
+		private int[] stateCell;
+		// offsets[i]: frame i, offsets[steps]: the index
+		private long[] offsets;
+
+		public Reader(String filename) throws IOException {
+			channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+			try {
+				long size = channel.size();
+				if (size < HEADER_BYTES + TRAILER_BYTES)
+					throw new IOException("not a belief file: " + filename);
+				ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_BYTES, TRAILER_BYTES);
+				long indexOffset = trailer.getLong();
+				int steps = trailer.getInt();
+				if (trailer.getInt() != MAGIC)
+					throw new IOException("not a belief file, or not closed: " + filename);
+
+				MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+				if (header.getInt() != MAGIC || header.getInt() != VERSION)
+					throw new IOException("not a belief file of version " + VERSION + ": " + filename);
+				width = header.getInt();
+				height = header.getInt();
+				numStates = header.getInt();
+				mazeHash = header.getLong();
+				float32 = (header.getInt() & FLOAT32) != 0;
+				threshold = header.getDouble();
+
+				if (width < 0 || height < 0 || (long) width * height > Integer.MAX_VALUE
+						|| numStates < 0 || numStates > (long) width * height)
+					throw new IOException("corrupt header: " + width + "x" + height + ", " + numStates + " states: " + filename);
+				int cells = width * height;
+				long dataOffset = HEADER_BYTES + (cells + 7) / 8;
+				if (steps < 0 || indexOffset < dataOffset || indexOffset + 8L * steps + TRAILER_BYTES != size)
+					throw new IOException("corrupt index: " + steps + " steps at " + indexOffset + " in "
+							+ size + " bytes: " + filename);
+
+				ByteBuffer bitmap = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, (cells + 7) / 8);
+				stateCell = new int[numStates];
+				int s = 0;
+				byte bits = 0;
+				for (int i = 0; i < cells; i++) {
+					if ((i & 7) == 0)
+						bits = bitmap.get();
+					if ((bits & (1 << (i & 7))) != 0) {
+						if (s == numStates)
+							throw new IOException("more legal locations than the " + numStates + " states: " + filename);
+						stateCell[s++] = i;
+					}
+				}
+				if (s != numStates)
+					throw new IOException(s + " legal locations for " + numStates + " states: " + filename);
+
+				ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, 8L * steps);
+				offsets = new long[steps + 1];
+				for (int i = 0; i < steps; i++)
+					offsets[i] = index.getLong();
+				offsets[steps] = indexOffset;
+				// frames in order, between the bitmap and the index
+				for (int i = 0; i < steps; i++)
+					if (offsets[i] < (i == 0 ? dataOffset : offsets[i - 1] + 1) || offsets[i] >= indexOffset)
+						throw new IOException("corrupt offset of frame " + i + ": " + filename);
+				mapFrames(steps);
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		private void mapFrames(int steps) throws IOException {
+			MappedByteBuffer[] maps = new MappedByteBuffer[Math.max(1, steps)];
+			int[] first = new int[maps.length];
+			int num = 0;
+			for (int k = 0; k < steps; ) {
+				int end = k + 1;
+				while (end < steps && offsets[end + 1] - offsets[k] <= CHUNK)
+					end++;
+				maps[num] = channel.map(FileChannel.MapMode.READ_ONLY, offsets[k], offsets[end] - offsets[k]);
+				first[num++] = k;
+				k = end;
+			}
+			chunks = Arrays.copyOf(maps, num);
+			chunkFirst = Arrays.copyOf(first, num);
+		}
+
+		// belief of step k, indexed by state
+		public double[] read(int k) throws IOException {
+			if (k < 0 || k >= getSteps())
+				throw new IndexOutOfBoundsException("step " + k + " of " + getSteps());
+			int c = Arrays.binarySearch(chunkFirst, k);
+			if (c < 0)
+				c = -c - 2;
+			// a view of its own, so that frames can be read by several threads
+			ByteBuffer frame = chunks[c].duplicate();
+			int from = (int) (offsets[k] - offsets[chunkFirst[c]]);
+			frame.limit(from + (int) (offsets[k + 1] - offsets[k])).position(from);
+
+			double[] belief = new double[numStates];
+			try {
+				if (frame.get() == SPARSE) {
+					int kept = frame.getInt();
+					int s = -1;
+					for (int i = 0; i < kept; i++) {
+						s += getVarint(frame);
+						belief[s] = getValue(frame);
+					}
+				}
+				else
+					for (int s = 0; s < numStates; s++)
+						belief[s] = getValue(frame);
+			} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+				throw new IOException("corrupt frame " + k + ": " + e);
+			}
+			return belief;
+		}
+
+		// belief of step k as a [height][width] grid, for MazeView.setTexts
+		public double[][] readGrid(int k) throws IOException {
+			double[] belief = read(k);
+			double[][] grid = new double[height][width];
+			for (int s = 0; s < numStates; s++)
+				grid[stateCell[s] / width][stateCell[s] % width] = belief[s];
+			return grid;
+		}
+
+		private double getValue(ByteBuffer b) {
+			return float32 ? b.getFloat() : b.getDouble();
+		}
+
+		public int getSteps() {
+			return offsets.length - 1;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public int getNumStates() {
+			return numStates;
+		}
+
+		public int getStateX(int s) {
+			return stateCell[s] % width;
+		}
+
+		public int getStateY(int s) {
+			return stateCell[s] / width;
+		}
+
+		// Maze.getContentHash of the maze the beliefs are over
+		public long getMazeHash() {
+			return mazeHash;
+		}
+
+		public boolean isFloat32() {
+			return float32;
+		}
+
+		public double getSparseThreshold() {
+			return threshold;
+		}
+
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	// bytes taken by putVarint(v), v > 0
+	static int varintBytes(int v) {
+		return 1 + (31 - Integer.numberOfLeadingZeros(v)) / 7;
+	}
+
+	// 7 bits per byte, high bit set on all bytes but the last
+	static void putVarint(ByteBuffer b, int v) {
+		while ((v & ~0x7f) != 0) {
+			b.put((byte) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		b.put((byte) v);
+	}
+
+	static int getVarint(ByteBuffer b) {
+		int v = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte x = b.get();
+			v |= (x & 0x7f) << shift;
+			if (x >= 0)
+				return v;
+		}
+	}
+
+}
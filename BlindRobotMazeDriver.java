@@ -3,6 +3,7 @@
 import java.util.ArrayList;
 import java.util.List;
 
+import javafx.animation.AnimationTimer;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.animation.TranslateTransition;
@@ -26,19 +27,40 @@ public class BlindRobotMazeDriver extends Application {
 	MazeView mazeView;
 	List<AnimationPath> animationPathList;
 	
+	// mazes with more locations than this, or --heatmap, are drawn as a heatmap
+	private static final int HEATMAP_CELLS = 64 * 64;
+	private static final int HEATMAP_PIXELS = 800;
+	HeatmapView heatmap;
+	
 	// some basic initialization of the graphics; needs to be done before 
 	//  runSearches, so that the mazeView is available
+	// arguments: [maze file] [--heatmap]
 	private void initMazeView() {
-		maze = Maze.readFromFile("simple.maz");
+		String file = "simple.maz";
+		boolean heatmapMode = false;
+		for (String arg: getParameters().getRaw()) {
+			if (arg.equals("--heatmap"))
+				heatmapMode = true;
+			else
+				file = arg;
+		}
+		maze = Maze.readFromFile(file);
 		
 		animationPathList = new ArrayList<AnimationPath>();
 		// build the board
-		mazeView = new MazeView(maze, PIXELS_PER_SQUARE);
+		if (heatmapMode || maze.width * maze.height > HEATMAP_CELLS)
+			heatmap = new HeatmapView(maze, HEATMAP_PIXELS, HEATMAP_PIXELS);
+		else
+			mazeView = new MazeView(maze, PIXELS_PER_SQUARE);
 		
 	}
 	
 	// assumes maze and mazeView instance variables are already available
 	private void runSearches() {
+		if (heatmap != null) {
+			runHeatmap();
+			return;
+		}
 		
 		//motions: e w w e
 		ArrayList<int[]> path = new ArrayList<int[]>();
@@ -77,6 +99,17 @@ public class BlindRobotMazeDriver extends Application {
 */		
 	}
 	
+	// a random walk of the robot, filtered as it is played
+	// the beliefs are computed one step at a time, so memory does not grow with the walk
+	private void runHeatmap() {
+		int[][] walk = MazeGenerator.walk(maze, 1000, 1);
+		
+		BlindRobotMazeProblem mazeProblem = new BlindRobotMazeProblem(maze);
+		mazeProblem.setParallelism(Runtime.getRuntime().availableProcessors());
+		
+		new HeatmapPlayback(mazeProblem.newFilterSession(), walk[0], walk[1]).start();
+	}
+	
 	private void printPath(ArrayList<int[]> path) {
 		for (int[] loc: path) {
 			System.out.print("(" + loc[0] + "," + loc[1] + ") ");
@@ -99,7 +132,10 @@ public class BlindRobotMazeDriver extends Application {
 
 		// add everything to a root stackpane, and then to the main window
 		StackPane root = new StackPane();
-		root.getChildren().add(mazeView);
+		if (heatmap != null)
+			root.getChildren().add(heatmap);
+		else
+			root.getChildren().add(mazeView);
 		primaryStage.setScene(new Scene(root));
 
 		primaryStage.show();
@@ -210,4 +246,54 @@ public class BlindRobotMazeDriver extends Application {
 			}
 		}
 	}
-}
\ No newline at end of file
+
+	// plays a walk on the heatmap: the piece glides from one location to the next
+	//  in MOVE_NANOS, redrawn every frame; the belief is updated once per move
+	private class HeatmapPlayback extends AnimationTimer {
+		private static final long MOVE_NANOS = 300000000L;
+		
+		private FilterSession session;
+		private int[] colors;
+		private int[] locations;
+		
+		private int piece;
+		private int currentMove = -1;
+		private long moveStart;
+		private double lastX;
+		private double lastY;
+		
+		HeatmapPlayback(FilterSession session, int[] colors, int[] locations) {
+			this.session = session;
+			this.colors = colors;
+			this.locations = locations;
+			
+			// P(L0) before the first reading, the piece at L0
+			heatmap.setBelief(session.getBelief());
+			lastX = locations[0] % maze.width;
+			lastY = locations[0] / maze.width;
+			piece = heatmap.addPiece((int) lastX, (int) lastY);
+		}
+		
+		// move t goes from locations[t] to locations[t + 1], where colors[t] is read
+		@Override
+		public void handle(long now) {
+			if (currentMove < 0 || now - moveStart >= MOVE_NANOS) {
+				currentMove++;
+				lastX = locations[currentMove] % maze.width;
+				lastY = locations[currentMove] / maze.width;
+				if (currentMove >= colors.length) {
+					heatmap.setPiece(piece, lastX, lastY);
+					stop();
+					return;
+				}
+				moveStart = now;
+				heatmap.setBelief(session.update(colors[currentMove]));
+			}
+			
+			double f = (double) (now - moveStart) / MOVE_NANOS;
+			double x = locations[currentMove + 1] % maze.width;
+			double y = locations[currentMove + 1] / maze.width;
+			heatmap.setPiece(piece, lastX + f * (x - lastX), lastY + f * (y - lastY));
+		}
+	}
+}
@@ -2,9 +2,7 @@
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Iterator;
 
 
 public class BlindRobotMazeProblem  {
@@ -13,149 +11,337 @@ public class BlindRobotMazeProblem  {
 
 	private Maze maze;
 	
-	// transition model P(Lt|Lt-1) = probability
-	// key: ArrayList<Integer>{Lt-1.x, Lt-1.y, Lt.x, Lt.y} value: probability
-	private HashMap<ArrayList<Integer>, Double> transModel;
+	// transition model P(Lt|Lt-1), compiled into sparse neighbor tables
+	private TransitionModel transModel;
+	
+	// sensor model P(C==s|L), compiled into one likelihood vector per color:
+	// 		likelihood[s][c] = P(C==s|state c), for s in 0 ... Maze.NUM_COLORS
+	private SensorModel sensor;
+	private double[][] likelihood;
+	
+	// P(robot stays in place instead of trying an action)
+	private double slip;
+	
+	// log-space Viterbi over transModel, built on first use
+	private volatile ViterbiDecoder viterbi;
+	
+	// row bands the per-step loops run over, in parallel when parallelism > 1
+	private volatile RowBands bands;
+	
+	// identifies the compiled model: maze content, likelihood vectors and slip
+	private long modelKey;
+	
+	// filtered beliefs shared with earlier queries, null for none
+	private volatile BeliefCache cache;
 	
 	
 	
 	public BlindRobotMazeProblem(Maze m) {
+		this(m, new SimpleSensorModel());
+	}
+	
+	public BlindRobotMazeProblem(Maze m, SensorModel sensorModel) {
+		this(m, sensorModel, 0);
+	}
+	
+	// slip: probability that the robot stays in place instead of trying an action
+	public BlindRobotMazeProblem(Maze m, SensorModel sensorModel, double slip) {
+		this(m, sensorModel, slip, null);
+	}
+
+	// models: registry the transition model is taken from, so that problems of the same
+	// 		maze share it; null to build it for this problem
+	public BlindRobotMazeProblem(Maze m, SensorModel sensorModel, double slip, ModelRegistry models) {
 //		System.out.println("Blind Robot begin!");
-		maze = m;		
-				
+		maze = m;
+		sensor = sensorModel;
+		this.slip = slip;
+
 		// build transition model
-		buildTransitionModel();
+		if (models != null)
+			transModel = models.get(maze, actions, slip);
+		else
+			buildTransitionModel();
 		
+		buildSensorModel();
+		
+		modelKey = maze.getContentHash() * 31 + Double.hashCode(slip);
+		for (double[] like: likelihood)
+			modelKey = modelKey * 31 + Arrays.hashCode(like);
+		
+		bands = new RowBands(transModel.rowStart(), 1);
 	}
 	
 	private void buildTransitionModel() {
-		transModel = new HashMap<ArrayList<Integer>, Double>();
-		
-		for (int i = 0; i < maze.height; i++)
-			for (int j = 0; j < maze.width; j++) {
-				//Location (j,i)
-				for (int[] action: actions) {
-					int curXNew = j + action[0];
-					int curYNew = i + action[1];
-					
-					// if the action can be done, P(L(curXnew, curYNew)|L(j,i)) = 0.25
-					// 		else P(L(j,i)|L(j,i)) += 0.25
-					if (maze.isLegal(curXNew, curYNew)) {
-						ArrayList<Integer> trans = new ArrayList<Integer>();
-						trans.add(j);
-						trans.add(i);
-						trans.add(curXNew);
-						trans.add(curYNew);
-						transModel.put(trans, 0.25);
-					}
-					else {
-						ArrayList<Integer> trans = new ArrayList<Integer>();
-						trans.add(j);
-						trans.add(i);
-						trans.add(j);
-						trans.add(i);
-						if (transModel.containsKey(trans)) 
-							transModel.put(trans, transModel.remove(trans) + 0.25);
-						else
-							transModel.put(trans, 0.25);
-					}
-				}
-			}
+		transModel = new TransitionModel(maze, actions, slip);
 	}
 	
-	// get P(C==s|L(x,y)) from sensor model
-	// sensor model: if c(x,y) == s, p = 0.88; else p = 0.04
-	private double sensorModel(int x, int y, int s) {
-		int color = maze.getColor(x, y);
-		
-		if (color == s)
-			return 0.88;
-		else
-			return 0.04;
+	Maze getMaze() {
+		return maze;
+	}
+	
+	TransitionModel getTransitionModel() {
+		return transModel;
+	}
+	
+	RowBands getBands() {
+		return bands;
+	}
+	
+	// number of threads used by each step of the inference, 1 for single-threaded
+	// results do not depend on it
+	public void setParallelism(int parallelism) {
+		bands = new RowBands(transModel.rowStart(), parallelism);
+	}
+	
+	public int getParallelism() {
+		return bands.getParallelism();
+	}
+	
+	private void buildSensorModel() {
+		likelihood = new double[Maze.NUM_COLORS + 1][];
+		for (int s = 0; s <= Maze.NUM_COLORS; s++)
+			likelihood[s] = buildLikelihood(s);
+	}
+	
+	private double[] buildLikelihood(int s) {
+		double[] like = new double[transModel.size];
+		for (int c = 0; c < like.length; c++)
+			like[c] = sensor.probability(maze, maze.getStateX(c), maze.getStateY(c), s);
+		return like;
+	}
+	
+	// P(C==s|L) for every state; do not modify
+	double[] likelihood(int s) {
+		if (s >= 0 && s < likelihood.length)
+			return likelihood[s];
+		// not a color of the maze
+		return buildLikelihood(s);
+	}
+	
+	public SensorModel getSensorModel() {
+		return sensor;
+	}
+	
+	public double getSlip() {
+		return slip;
+	}
+	
+	long getModelKey() {
+		return modelKey;
+	}
+	
+	// the likelihood vectors of all colors; do not modify
+	double[][] getLikelihoods() {
+		return likelihood;
+	}
+	
+	// true if this problem filters like a model of maze m with slip and likelihood vectors
+	boolean sameModel(Maze m, double slip, double[][] likelihood) {
+		return Double.compare(this.slip, slip) == 0 && Arrays.deepEquals(this.likelihood, likelihood)
+				&& maze.sameContent(m);
+	}
+	
+	// resume filtering and smoothing from the longest cached prefix of the evidence
+	// 		the cache can be shared by problems of different mazes; null to stop caching
+	public void setBeliefCache(BeliefCache cache) {
+		this.cache = cache;
+	}
+	
+	public BeliefCache getBeliefCache() {
+		return cache;
 	}
 	
 	// get probability distributions describing the possible locations 
 	//		of the robot at each time step.	
 	public ArrayList<double[][]> getProbDistr(int[] colors) {
+		InferenceEvents.Call call = InferenceEvents.begin("getProbDistr");
 //		return Filtering(colors);
-		return ForwardBackward(colors);
+		ArrayList<double[][]> result = ForwardBackward(colors);
+		InferenceEvents.end(call, colors.length);
+		return result;
+	}
+	
+	// filtering only: P(Xt|e1:t) at each time step
+	public ArrayList<double[][]> getFilteredDistr(int[] colors) {
+		InferenceEvents.Call call = InferenceEvents.begin("getFilteredDistr");
+		ArrayList<double[][]> result = Filtering(colors);
+		InferenceEvents.end(call, colors.length);
+		return result;
+	}
+	
+	// smoothing P(Xk|e1:t) for every k, streamed to consumer in time order
+	// only about sqrt(t) belief vectors are kept at any time
+	public void smooth(int[] colors, BeliefConsumer consumer) {
+		InferenceEvents.Call call = InferenceEvents.begin("smooth");
+		new CheckpointSmoother(this).smooth(colors, consumer);
+		InferenceEvents.end(call, colors.length);
+	}
+	
+	// start an online filtering session that takes one color reading at a time
+	public FilterSession newFilterSession() {
+		return new FilterSession(this);
+	}
+	
+	// start an online filtering session that only updates the most likely states:
+	// 		those holding 1 - massThreshold of the mass, at most topK of them if topK > 0
+	public SparseFilterSession newSparseFilterSession(double massThreshold, int topK) {
+		return new SparseFilterSession(this, massThreshold, topK);
+	}
+	
+	// start a particle filter, a sampled approximation of Filtering
+	public ParticleFilter newParticleFilter(int numParticles, long seed) {
+		return new ParticleFilter(this, numParticles, seed);
+	}
+	
+	// start an online fixed-lag smoother: each reading ct gives P(L(t-lag)|c1:t)
+	public FixedLagSmoother newFixedLagSmoother(int lag) {
+		return new FixedLagSmoother(this, lag);
+	}
+	
+	// filtering and Viterbi split in time over threads, for very long evidence
+	// 		(call shutdown on it when done)
+	public TimeParallelInference newTimeParallelInference(int threads) {
+		return new TimeParallelInference(this, threads);
+	}
+	
+	// beliefs are vectors over the legal locations only (the states of Maze.getState);
+	// 		they are turned into [height][width] grids only when returned
+	
+	// initial probability distribution: P(L0), uniform over valid locations except walls
+	double[] initialDistr() {
+		double[] prob = new double[transModel.size];
+		for (int c = 0; c < prob.length; c++)
+			prob[c] = 1.0 / prob.length;
+		return prob;
+	}
+	
+	// P(et+1|Xt+1) * prob, in place, for the states lo ... hi-1
+	// returns the sum for alpha
+	double weight(double[] prob, int color, int lo, int hi) {
+		return weight(prob, likelihood(color), lo, hi);
+	}
+	
+	static double weight(double[] prob, double[] like, int lo, int hi) {
+		double sum = 0;
+		for (int c = lo; c < hi; c++) {
+			prob[c] = like[c] * prob[c];
+			sum += prob[c];
+		}
+		return sum;
+	}
+	
+	static void scale(double[] prob, double alpha, int lo, int hi) {
+		for (int c = lo; c < hi; c++)
+			prob[c] = prob[c] * alpha;
+	}
+	
+	// belief vector over the states to a [height][width] grid, 0 on walls
+	public double[][] toGrid(double[] prob) {
+		double[][] grid = new double[maze.height][maze.width];
+		for (int c = 0; c < prob.length; c++)
+			grid[maze.getStateY(c)][maze.getStateX(c)] = prob[c];
+		return grid;
+	}
+	
+	// one filtering step, P(Xt|e1:t) -> P(Xt+1|e1:t+1)
+	// returns the normalizer sum before alpha
+	double filterStep(final double[] prob_t_t, final double[] prob_t1_t, final int color) {
+		RowBands bands = this.bands;
+		
+		// step1: P(Xt+1|e1:t) = sum_xt(P(Xt+1|Xt)*P(Xt|e1:t))
+		// 		P(Xt+1|Xt) got from transition model
+		// 		P(Xt|e1:t) is last step probability distribution
+		// step2: P(Xt+1|e1:t+1) = alpha * P(et+1|Xt+1)*P(Xt+1|e1:t)
+		//		P(et+1|Xt+1) got from sensor model
+		//		P(Xt+1|e1:t) got from step1
+		// both only read the last step, so they are done band by band in one pass
+		final double[] like = likelihood(color);
+		boolean observed = InferenceEvents.filterStepActive();
+		long start = observed ? System.nanoTime() : 0;
+		final double sum = bands.sum((lo, hi) -> {
+			transModel.predict(prob_t_t, prob_t1_t, lo, hi);
+			return weight(prob_t1_t, like, lo, hi);
+		});
+		InferenceEvents.checkNormalizer("filterStep", sum);
+		long predicted = observed ? System.nanoTime() : 0;
+		
+		// alpha
+		bands.forEach((lo, hi) -> {
+			scale(prob_t1_t, 1.0 / sum, lo, hi);
+			return 0;
+		});
+		
+		if (observed)
+			InferenceEvents.filterStep(prob_t1_t, sum, predicted - start, System.nanoTime() - predicted);
+		return sum;
+	}
+	
+	// one backward step, b = P(ek+1:t|Xk) -> out = P(ek:t|Xk-1)
+	// P(ek:t|Xk-1) = sum_xk(P(ek|xk) * P(ek+1:t|xk) * P(xk|xk-1))
+	// b is overwritten; out is rescaled so that it does not underflow, scale does not matter after alpha
+	void backwardStep(final double[] b, final double[] out, final int color) {
+		RowBands bands = this.bands;
+		
+		final double[] like = likelihood(color);
+		boolean observed = InferenceEvents.backwardStepActive();
+		long start = observed ? System.nanoTime() : 0;
+		final double bsum = bands.sum((lo, hi) -> weight(b, like, lo, hi));
+		InferenceEvents.checkNormalizer("backwardStep", bsum);
+		bands.forEach((lo, hi) -> {
+			transModel.backward(b, out, lo, hi);
+			scale(out, 1.0 / bsum, lo, hi);
+			return 0;
+		});
+		if (observed)
+			InferenceEvents.backwardStep(bsum, System.nanoTime() - start);
 	}
 	
 	// Filtering: Forward P(Xt|e1:t)
 	private ArrayList<double[][]> Filtering(int[] colors) {
-		// probability distributions sequence of each steps.
-		ArrayList<double[][]> probDistrSeq = new ArrayList<double[][]>();
+		ArrayList<double[][]> probDistrSeq = new ArrayList<double[][]>(colors.length + 1);
 		
-		// before first step, initial probability distribution: P(L0)
-		double[][] prob_L0 = new double[maze.height][maze.width];
+		BeliefCache cache = this.cache;
+		if (cache != null) {
+			for (double[] prob: cache.filter(this, colors))
+				probDistrSeq.add(toGrid(prob));
+			return probDistrSeq;
+		}
 		
-		// get the num of valid locations except walls
-		int num = 0;
-		for (int i = 0; i < maze.height; i++)
-			for (int j = 0; j < maze.width; j++)
-				if (maze.isLegal(j, i))
-					num++;
+		// only the grids are kept, the two state vectors are reused
+		FilterSession session = newFilterSession();
+		probDistrSeq.add(session.getBelief());
+		for (int color: colors) {
+			session.update(color);
+			probDistrSeq.add(session.getBelief());
+		}
+		return probDistrSeq;
+	}
+	
+	// Filtering over the states: P(Xt|e1:t) for t = 0 ... colors.length
+	// 		(shared with the cache when there is one: do not modify)
+	private ArrayList<double[]> FilteringStates(int[] colors) {
+		BeliefCache cache = this.cache;
+		if (cache != null)
+			return cache.filter(this, colors);
 		
-		for (int i = 0; i < maze.height; i++)
-			for (int j = 0; j < maze.width; j++)
-				if (maze.isLegal(j, i))
-					prob_L0[i][j] = 1.0 / num;
+		// probability distributions sequence of each steps.
+		ArrayList<double[]> probDistrSeq = new ArrayList<double[]>(colors.length + 1);
 		
-		probDistrSeq.add(prob_L0);
+		// before first step, initial probability distribution: P(L0)
+		// P(Xt|e1:t) = P(Lt|c1:t)
+		double[] prob_t_t = initialDistr();
+		probDistrSeq.add(prob_t_t);
 		
 		// one step, get a color as evidence variable Ct
 		// Then do filtering to get P(Xt|e1:t) = P(Lt|c1:t)
 		for (int color: colors) {
-			// step1: P(Xt+1|e1:t) = sum_xt(P(Xt+1|Xt)*P(Xt|e1:t))
-			// 		P(Xt+1|Xt) got from transition model
-			// 		P(Xt|e1:t) is last step probability distribution
-			
-			// P(Xt+1|e1:t) = P(Lt+1|c1:t)
-			double[][] prob_t1_t = new double[maze.height][maze.width];
-			
-			// P(Xt|e1:t) = P(Lt|c1:t)
-			double[][] prob_t_t = probDistrSeq.get(probDistrSeq.size()-1);
-			
-			for (int i = 0; i < maze.height; i++)
-				for (int j = 0; j < maze.width; j++) {
-					// Location (j,i)
-					prob_t1_t[i][j] = 0;
-					for (int m = 0; m < maze.height; m++)
-						for (int n = 0; n < maze.width; n++) {
-							// transition (n,m)->(j,i)
-							ArrayList<Integer> trans = new ArrayList<Integer>();
-							trans.add(n);
-							trans.add(m);
-							trans.add(j);
-							trans.add(i);
-							// in transModel, only store nonzero transition
-							if (transModel.containsKey(trans))
-								prob_t1_t[i][j] += transModel.get(trans) * prob_t_t[m][n];
-						}
-				}
-				
-			// step2: P(Xt+1|e1:t+1) = alpha * P(et+1|Xt+1)*P(Xt+1|e1:t)
-			//		P(et+1|Xt+1) got from sensor model
-			//		P(Xt+1|e1:t) got from step1
-			
-			// P(Xt+1|e1:t+1) = P(Lt+1:c1:t+1)
-			double[][] prob_t1_t1 = new double[maze.height][maze.width];
-			double sum = 0;
-			
-			// P(et+1|Xt+1)*P(Xt+1|e1:t)
-			for (int i = 0; i < maze.height; i++)
-				for (int j = 0; j < maze.width; j++) {
-					// getP(et+1|Xt+1) from sensor model: Location (j,i)-> Ct+1
-					prob_t1_t1[i][j] = sensorModel(j,i, color) * prob_t1_t[i][j];
-					sum += prob_t1_t1[i][j];
-				}
-			// alpha
-			for (int i = 0; i < maze.height; i++)
-				for (int j = 0; j < maze.width; j++) {
-					prob_t1_t1[i][j] = prob_t1_t1[i][j] / sum;
-				}
+			// P(Xt+1|e1:t+1) = P(Lt+1|c1:t+1)
+			double[] prob_t1_t1 = new double[transModel.size];
+			filterStep(prob_t_t, prob_t1_t1, color);
 					
 			probDistrSeq.add(prob_t1_t1);
+			prob_t_t = prob_t1_t1;
 		}
 		
 		return probDistrSeq;
@@ -164,220 +350,103 @@ public class BlindRobotMazeProblem  {
 	// forward-backward algorithm for smoothing P(Xk|e1:t) 0 < k < t
 	private ArrayList<double[][]> ForwardBackward(int[] colors) {
 		// fv[t] = P(Xt|e1:t)
-		ArrayList<double[][]> fv = Filtering(colors);
-		// sv[t] = P（Xk|e1:t)
-		ArrayList<double[][]> sv = new ArrayList<double[][]>();
+		ArrayList<double[]> fv = FilteringStates(colors);
+		// sv[t] = P（Xk|e1:t), filled from the back
+		double[][][] sv = new double[fv.size()][][];
 		// b = P(ek+1:t|Xk)
-		double[][] b = new double[maze.height][maze.width];
+		double[] b = new double[transModel.size];
+		double[] tmp = new double[transModel.size];
+		// the forward messages may be shared with the cache, so sv[i] is built here
+		double[] svi = new double[transModel.size];
 		
 		// the first b = P(ek+1:t|Xk) = 1 
-		for (int m = 0; m < maze.height; m++)
-			for (int n = 0; n < maze.width; n++) {
-				b[m][n] = 1;
-			}
+		for (int c = 0; c < b.length; c++)
+			b[c] = 1;
 		
-		for (int i = fv.size()-1; i > 0; i--) {
-			int color = colors[i-1];
+		for (int i = fv.size()-1; i >= 0; i--) {
 			//sv[i] = Normalize(fv[i] x b)
 			//sv[i] = alpha P(Xk|e1:k) * P(ek+1:k|Xk)
-			double[][] svi = new double[maze.height][maze.width];
-			double[][] fvi = fv.get(i);
+			double[] fvi = fv.get(i);
 
 			// P(Xk|e1:k) * P(ek+1:t|Xk)
 			double sum = 0;
-			for (int m = 0; m < maze.height; m++)
-				for (int n = 0; n < maze.width; n++) {
-					svi[m][n] = fvi[m][n] * b[m][n];
-					sum += svi[m][n];
-				}
+			for (int c = 0; c < svi.length; c++) {
+				svi[c] = fvi[c] * b[c];
+				sum += svi[c];
+			}
 			
 			// alpha 
-			for (int m = 0; m < maze.height; m++)
-				for (int n = 0; n < maze.width; n++) {
-					svi[m][n] = svi[m][n] / sum;
-				}
+			for (int c = 0; c < svi.length; c++)
+				svi[c] = svi[c] / sum;
 			
-			sv.add(0, svi);
+			sv[i] = toGrid(svi);
+			// the forward message is not needed any more
+			fv.set(i, null);
 			
-			// b = Backward(b,ev[i])
-			// b = P(ek:t|Xk-1) = sum_xk(P(ek|xk) * P(ek+1:t|xk) * P(xk|xk-1))
-			// Xk-1 = (n,m)
-			double[][] tmp = new double[maze.height][maze.width];
+			if (i == 0)
+				break;
 			
-			for (int m = 0; m < maze.height; m++)
-				for (int n = 0; n < maze.width; n++) {
-					// xk = (l,k)
-					for (int k = 0; k < maze.height; k++)
-						for (int l = 0; l < maze.width; l++) {
-							// P(xk|xk-1)
-							ArrayList<Integer> trans = new ArrayList<Integer>();
-							trans.add(m);
-							trans.add(n);
-							trans.add(k);
-							trans.add(l);
-							if (transModel.containsKey(trans))
-								tmp[m][n] += sensorModel(l,k, color) * b[k][l] * transModel.get(trans);
-						}
-				}
+			// b = Backward(b,ev[i])
+			backwardStep(b, tmp, colors[i-1]);
+			double[] t = b;
 			b = tmp;
+			tmp = t;
 		}
 		
-		// P(X0|e1:t) = alpha P(X0) * P(e1:t|X0) = alpha * P(X0) * b
-		double[][] px0 = new double[maze.height][maze.width];
-		double sum = 0;
-		for (int m = 0; m < maze.height; m++)
-			for (int n = 0; n < maze.width; n++) {
-				px0[m][n] = fv.get(0)[m][n] * b[m][n];
-				sum += px0[m][n];
-			}
-		
-		for (int m = 0; m < maze.height; m++)
-			for (int n = 0; n < maze.width; n++) {	
-				px0[m][n] /= sum;
-			}
-		sv.add(0, px0);
-		
-		return sv;
+		ArrayList<double[][]> result = new ArrayList<double[][]>(sv.length);
+		for (double[][] grid: sv)
+			result.add(grid);
+		return result;
 		
 	}
 	
+	// bounds of getPath_Viterbi(colors, probDistr): the number of tied sequences can grow
+	// 		exponentially with the evidence on symmetric mazes
+	public static final int MAX_VITERBI_PATHS = 1000;
+	// locations in all the returned sequences together (at least one sequence is returned)
+	public static final int MAX_VITERBI_LOCATIONS = 1 << 22;
+	
 	// using Viterbi to get the most likely sequence, maybe more than one
+	// 		(at most MAX_VITERBI_PATHS, and MAX_VITERBI_LOCATIONS locations; getViterbi counts them all)
 	public ArrayList<ArrayList<int[]>> getPath_Viterbi(int[] colors, ArrayList<double[][]> probDistr) {
+		int maxPaths = Math.max(1, Math.min(MAX_VITERBI_PATHS, MAX_VITERBI_LOCATIONS / (colors.length + 1)));
+		return getPath_Viterbi(colors, probDistr, maxPaths);
+	}
 	
-		// P(x1,...,xt|e1:t)
-		// Initial probability distribution: P(L0)
-		double[][] prob_xt = new double[maze.height][maze.width];
-		
-		// get the num of valid locations except walls
-		int num = 0;
-		for (int i = 0; i < maze.height; i++)
-			for (int j = 0; j < maze.width; j++)
-				if (maze.isLegal(j, i))
-					num++;
-		
-		for (int i = 0; i < maze.height; i++)
-			for (int j = 0; j < maze.width; j++)
-				if (maze.isLegal(j, i))
-					prob_xt[i][j] = 1.0 / num;
-		
-		probDistr.add(prob_xt);
-		
-		// keep maxarg xt
-		// ArrayList[0] = null, because no location before L0
-		// key: L[x,y] 	value: locations(x2,y2) lead to this (x,y)
-		ArrayList<HashMap<ArrayList<Integer>, ArrayList<int[]>>> maxarg_xt_list = new ArrayList<HashMap<ArrayList<Integer>, ArrayList<int[]>>>();
-		maxarg_xt_list.add(null);
-		
-		// max P(x1,...xt, Xt+1| e1:t+1) = alpha P(et+1|Xt+1) max( P(Xt+1|xt) max(x1,...,xt|e1:t) )
-		for (int color: colors) {
-			// max P(x1,...xt, Xt+1| e1:t+1)
-			double[][] prob = new double[maze.height][maze.width];		
-			
-			// keep maxarg xt in this step
-			HashMap<ArrayList<Integer>, ArrayList<int[]>> maxarg_xt = new HashMap<ArrayList<Integer>, ArrayList<int[]>>();
-			
-			// for each Xt+1, prob[i][j] = max( P(Xt+1|xt) max(x1,...,xt|e1:t) )
-			for (int i = 0; i < maze.height; i++)
-				for (int j = 0; j < maze.width; j++) {
-					
-					// keep max 
-					double max = 0;
-					ArrayList<int[]> maxLoc = new ArrayList<int[]>();
-					
-					// for each xt, max ( P(Xt+1|xt) max(x1,...,xt|e1:t) )
-					for (int m = 0; m < maze.height; m++)
-						for (int n = 0; n < maze.width; n++) {
-							ArrayList<Integer> trans = new ArrayList<Integer>();
-							trans.add(m);
-							trans.add(n);
-							trans.add(i);
-							trans.add(j);
-							if (transModel.containsKey(trans)) {
-								double tmp = transModel.get(trans) * prob_xt[m][n];
-								if (tmp > max) {
-									max = tmp;
-									if (!maxLoc.isEmpty())
-										maxLoc.clear();
-									maxLoc.add(new int[]{n,m});
-								}
-								else if (tmp == max) {
-									maxLoc.add(new int[]{n,m});
-								}
-							}
-						}
-					prob[i][j] = max;
-					ArrayList<Integer> loc = new ArrayList<Integer>();
-					loc.add(j);
-					loc.add(i);
-					maxarg_xt.put(loc, maxLoc);
-				}
-			
-			// P(et+1|Xt+1) max( P(Xt+1|xt) max(x1,...,xt|e1:t) )
-			double sum = 0;
-			for (int i = 0; i < maze.height; i++)
-				for (int j = 0; j < maze.width; j++) {
-					prob[i][j] = sensorModel(j,i, color) * prob[i][j];
-					sum += prob[i][j];
-				}
-			
-			// alpha
-			for (int i = 0; i < maze.height; i++)
-				for (int j = 0; j < maze.width; j++) {
-					prob[i][j] = prob[i][j]/sum;
-				}
-			
-			// prepare for next loop
-			prob_xt = prob;
-			probDistr.add(prob_xt);
-			maxarg_xt_list.add(maxarg_xt);
-			
-		}
-		
-		// maxarg P(x1,...xt, Xt+1| e1:t+1) find the path
-		// find maxarg P(x1,...xt, Xt+1| e1:t+1)
-		double max = 0;
-		int[] maxLoc = new int[2];
-		for (int i = 0; i < maze.height; i++)
-			for (int j = 0; j < maze.width; j++) {
-				if (prob_xt[i][j] > max) {
-					max = prob_xt[i][j];
-					maxLoc[0] = j;
-					maxLoc[1] = i;
-				}
-			}
-		
-		// find path
-		ArrayList<ArrayList<int[]>> paths = new ArrayList<ArrayList<int[]>>();
-		ArrayList<int[]> p = new ArrayList<int[]>();
-		p.add(0, maxLoc);
-		
-		findPath(maxarg_xt_list, p, paths);
-		
+	// the first maxPaths tied most likely sequences, built from the lazy iterator of getViterbi
+	public ArrayList<ArrayList<int[]>> getPath_Viterbi(int[] colors, ArrayList<double[][]> probDistr, int maxPaths) {
+		ViterbiDecoder.Result result = getViterbi(colors, probDistr);
+		ArrayList<ArrayList<int[]>> paths = new ArrayList<ArrayList<int[]>>((int) Math.min(maxPaths, result.getPathCount()));
+		Iterator<ArrayList<int[]>> it = result.iterator();
+		while (paths.size() < maxPaths && it.hasNext())
+			paths.add(it.next());
 		return paths;
 	}
 	
-	private void findPath(ArrayList<HashMap<ArrayList<Integer>, ArrayList<int[]>>> maxarg_xt_list, 
-			ArrayList<int[]> p, ArrayList<ArrayList<int[]>> paths) {
-		// if path is complete
-		if (maxarg_xt_list.size() == p.size()) {
-			paths.add(p);
-			return;
-		}
-		
-		// find 1 step previous locations
-		HashMap<ArrayList<Integer>, ArrayList<int[]>> maxarg_xt = maxarg_xt_list.get(maxarg_xt_list.size()-p.size());
-		ArrayList<Integer> loc = new ArrayList<Integer>();
-		loc.add(p.get(0)[0]);
-		loc.add(p.get(0)[1]);
-		ArrayList<int[]> locs = maxarg_xt.get(loc);
-
-		for (int j = 1; j < locs.size(); j++) {
-			ArrayList<int[]> np = new ArrayList<int[]>(p);
-			np.add(0, locs.get(j));
-			findPath(maxarg_xt_list, np, paths);
-		}
-		p.add(0, locs.get(0));
-		findPath(maxarg_xt_list, p, paths);
+	// Viterbi without building the tied paths: the result counts them and
+	// 		iterates over them lazily
+	public ViterbiDecoder.Result getViterbi(int[] colors, ArrayList<double[][]> probDistr) {
+		InferenceEvents.Call call = InferenceEvents.begin("getViterbi");
+		ViterbiDecoder decoder = viterbi;
+		// two threads may both build it: the same decoder either way
+		if (decoder == null)
+			viterbi = decoder = new ViterbiDecoder(this);
+		ViterbiDecoder.Result result = decoder.decode(colors, probDistr);
+		InferenceEvents.viterbi(result, colors.length);
+		InferenceEvents.end(call, colors.length);
+		return result;
+	}
+	
+	// the model reduced to blocks of states the sensor and motion cannot tell apart;
+	// 		filtering and Viterbi on it give the same results with fewer states
+	public LumpedChain lump() {
+		return new LumpedChain(this);
+	}
+	
+	// the k most likely sequences, best first, with their log probabilities
+	// 		(list Viterbi, does not enumerate ties)
+	public ArrayList<ListViterbiDecoder.Path> getKBestPaths(int[] colors, int k) {
+		return new ListViterbiDecoder(this, k).decode(colors);
 	}
 	
-}
\ No newline at end of file
+}
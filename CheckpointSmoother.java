@@ -0,0 +1,109 @@
+
+
+// forward-backward smoothing P(Xk|e1:t) with checkpoints, streamed in time order
+// 		1. backward sweep from t down to 0, keep b = P(ek+1:t|Xk) only at every
+// 		   interval-th step (the checkpoints)
+// 		2. forward sweep from 0 to t; at the start of each segment the b of the
+// 		   segment is recomputed from the checkpoint at its end, then
+// 		   P(Xk|e1:t) = alpha * P(Xk|e1:k) * P(ek+1:t|Xk) is handed to the consumer
+// with interval = sqrt(t), about 2 * sqrt(t) belief vectors are kept instead of 2 * t
+public class CheckpointSmoother {
+
+	private BlindRobotMazeProblem problem;
+
+	public CheckpointSmoother(BlindRobotMazeProblem p) {
+		problem = p;
+	}
+
+	public void smooth(int[] colors, BeliefConsumer consumer) {
+		smooth(colors, (int) Math.ceil(Math.sqrt(colors.length + 1)), consumer);
+	}
+
+	public void smooth(int[] colors, int interval, BeliefConsumer consumer) {
+		int steps = colors.length;
+		int size = problem.getTransitionModel().size;
+		if (interval < 1)
+			interval = 1;
+
+		// checkpoint[j] = b at step j * interval
+		int numCheckpoints = steps / interval + 1;
+		double[][] checkpoint = new double[numCheckpoints][];
+
+		// the first b = P(ek+1:t|Xk) = 1
+		double[] b = new double[size];
+		double[] tmp = new double[size];
+		for (int c = 0; c < size; c++)
+			b[c] = 1;
+
+		// backward sweep, keep the checkpoints
+		for (int k = steps; k >= 0; k--) {
+			if (k % interval == 0)
+				checkpoint[k / interval] = b.clone();
+			if (k == 0)
+				break;
+			problem.backwardStep(b, tmp, colors[k - 1]);
+			double[] t = b;
+			b = tmp;
+			tmp = t;
+		}
+
+		// segment[i] = b at step start + i
+		double[][] segment = new double[interval][size];
+		// P(Xk|e1:k) and the smoothed belief handed out
+		double[] fv = problem.initialDistr();
+		double[] fvNext = new double[size];
+		final double[] sv = new double[size];
+		RowBands bands = problem.getBands();
+
+		for (int start = 0; start <= steps; start += interval) {
+			int end = Math.min(start + interval, steps + 1);
+
+			// recompute b of the segment from the checkpoint at its start (kept as is)
+			// 		and at its end (stepped back down to start + 1)
+			System.arraycopy(checkpoint[start / interval], 0, segment[0], 0, size);
+			if (end - 1 > start) {
+				if (end - 1 == steps)
+					for (int c = 0; c < size; c++)
+						segment[end - 1 - start][c] = 1;
+				else {
+					// b at step end, then one step back
+					System.arraycopy(checkpoint[end / interval], 0, tmp, 0, size);
+					problem.backwardStep(tmp, segment[end - 1 - start], colors[end - 1]);
+				}
+				for (int k = end - 1; k > start + 1; k--) {
+					System.arraycopy(segment[k - start], 0, tmp, 0, size);
+					problem.backwardStep(tmp, segment[k - 1 - start], colors[k - 1]);
+				}
+			}
+
+			// forward sweep over the segment
+			for (int k = start; k < end; k++) {
+				if (k > 0) {
+					problem.filterStep(fv, fvNext, colors[k - 1]);
+					double[] t = fv;
+					fv = fvNext;
+					fvNext = t;
+				}
+
+				// sv = alpha P(Xk|e1:k) * P(ek+1:t|Xk)
+				final double[] fvk = fv;
+				final double[] bk = segment[k - start];
+				final double sum = bands.sum((lo, hi) -> {
+					double s = 0;
+					for (int c = lo; c < hi; c++) {
+						sv[c] = fvk[c] * bk[c];
+						s += sv[c];
+					}
+					return s;
+				});
+				bands.forEach((lo, hi) -> {
+					BlindRobotMazeProblem.scale(sv, 1.0 / sum, lo, hi);
+					return 0;
+				});
+
+				consumer.accept(k, sv);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+
+
+// calibrated sensor model
+// 		confusion[c][s] = P(C==s|color of the location is c), for c, s in 0 ... Maze.NUM_COLORS
+// 		noise[y][x] (optional): at location (x,y) the reading is, with this probability,
+// 			replaced by a uniformly random color 1 ... Maze.NUM_COLORS
+// P(C==s|L(x,y)) = (1 - noise[y][x]) * confusion[c(x,y)][s] + noise[y][x] / Maze.NUM_COLORS
+public class ConfusionSensorModel implements SensorModel {
+
+	private double[][] confusion;
+	private double[][] noise;
+
+	public ConfusionSensorModel(double[][] confusion) {
+		this(confusion, null);
+	}
+
+	public ConfusionSensorModel(double[][] confusion, double[][] noise) {
+		this.confusion = confusion;
+		this.noise = noise;
+	}
+
+	public double probability(Maze maze, int x, int y, int s) {
+		int c = maze.getColor(x, y);
+		double p = 0;
+		if (c < confusion.length && s >= 0 && s < confusion[c].length)
+			p = confusion[c][s];
+
+		if (noise == null)
+			return p;
+		double n = noise[y][x];
+		return (1 - n) * p + (s >= 1 && s <= Maze.NUM_COLORS ? n / Maze.NUM_COLORS : 0);
+	}
+
+	// confusion matrix of SimpleSensorModel(correct, wrong)
+	public static double[][] symmetric(double correct, double wrong) {
+		double[][] confusion = new double[Maze.NUM_COLORS + 1][Maze.NUM_COLORS + 1];
+		for (int c = 0; c <= Maze.NUM_COLORS; c++)
+			for (int s = 1; s <= Maze.NUM_COLORS; s++)
+				confusion[c][s] = c == s ? correct : wrong;
+		return confusion;
+	}
+
+	public double[][] getConfusion() {
+		return confusion;
+	}
+
+}
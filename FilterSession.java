@@ -0,0 +1,79 @@
+
+
+// online filtering session: P(Lt|c1:t) updated one color reading at a time.
+// only two belief vectors are kept (double buffer), so memory does not grow
+// 		with the number of readings.
+public class FilterSession {
+
+	private BlindRobotMazeProblem problem;
+
+	// P(Xt|e1:t), the current belief
+	private double[] prob_t_t;
+	// P(Xt+1|e1:t+1), written by the next update
+	private double[] prob_t1_t;
+
+	private int steps;
+
+	// latency of update(), in nanoseconds
+	private long lastUpdateNanos;
+	private long totalUpdateNanos;
+	private long maxUpdateNanos;
+
+	FilterSession(BlindRobotMazeProblem p) {
+		problem = p;
+		reset();
+	}
+
+	// back to P(L0), no readings seen
+	public void reset() {
+		prob_t_t = problem.initialDistr();
+		prob_t1_t = new double[prob_t_t.length];
+		steps = 0;
+		lastUpdateNanos = 0;
+		totalUpdateNanos = 0;
+		maxUpdateNanos = 0;
+	}
+
+	// take color reading ct, return P(Lt|c1:t)
+	// the returned array is indexed by state (Maze.getState) and is only valid until the next update
+	public double[] update(int color) {
+		long start = System.nanoTime();
+
+		problem.filterStep(prob_t_t, prob_t1_t, color);
+
+		double[] tmp = prob_t_t;
+		prob_t_t = prob_t1_t;
+		prob_t1_t = tmp;
+		steps++;
+
+		lastUpdateNanos = System.nanoTime() - start;
+		totalUpdateNanos += lastUpdateNanos;
+		if (lastUpdateNanos > maxUpdateNanos)
+			maxUpdateNanos = lastUpdateNanos;
+
+		return prob_t_t;
+	}
+
+	// copy of the current belief as a [height][width] grid, as in getProbDistr
+	public double[][] getBelief() {
+		return problem.toGrid(prob_t_t);
+	}
+
+	// number of readings seen
+	public int getSteps() {
+		return steps;
+	}
+
+	public long getLastUpdateNanos() {
+		return lastUpdateNanos;
+	}
+
+	public long getMaxUpdateNanos() {
+		return maxUpdateNanos;
+	}
+
+	public double getMeanUpdateNanos() {
+		return steps == 0 ? 0 : (double) totalUpdateNanos / steps;
+	}
+
+}
@@ -0,0 +1,112 @@
+
+
+// online fixed-lag smoothing: after reading ct, gives P(L(t-d)|c1:t)
+// keeps the last d+1 forward messages P(Lk|c1:k) and the last d colors in rings;
+// 		each reading costs one filtering step and d backward steps, whatever t is.
+public class FixedLagSmoother {
+
+	private BlindRobotMazeProblem problem;
+	private int lag;
+	private int size;
+
+	// forward[k % forward.length] = P(Lk|c1:k), for k = t-d ... t
+	// 		(at least 2, so that a filtering step never writes over its input)
+	private double[][] forward;
+	// colors[k % lag] = ck, for k = t-d+1 ... t
+	private int[] colors;
+
+	// b = P(ck+1:t|Lk), its scratch, and the smoothed belief handed out
+	private double[] b;
+	private double[] tmp;
+	private double[] smoothed;
+
+	private int steps;
+
+	private long lastUpdateNanos;
+	private long totalUpdateNanos;
+
+	FixedLagSmoother(BlindRobotMazeProblem p, int lag) {
+		problem = p;
+		this.lag = Math.max(0, lag);
+		size = p.getTransitionModel().size;
+
+		forward = new double[Math.max(2, this.lag + 1)][];
+		forward[0] = p.initialDistr();
+		for (int i = 1; i < forward.length; i++)
+			forward[i] = new double[size];
+		colors = new int[Math.max(1, this.lag)];
+
+		b = new double[size];
+		tmp = new double[size];
+		smoothed = new double[size];
+	}
+
+	public int getLag() {
+		return lag;
+	}
+
+	// number of readings seen
+	public int getSteps() {
+		return steps;
+	}
+
+	// take color reading ct, return P(L(t-d)|c1:t)
+	// null while t < d; the returned array is indexed by state and only valid until the next update
+	public double[] update(int color) {
+		long start = System.nanoTime();
+
+		// P(Lt|c1:t) from P(Lt-1|c1:t-1)
+		int t = steps + 1;
+		problem.filterStep(forward[steps % forward.length], forward[t % forward.length], color);
+		if (lag > 0)
+			colors[t % lag] = color;
+		steps = t;
+
+		double[] result = null;
+		if (t >= lag)
+			result = smooth(t - lag);
+
+		lastUpdateNanos = System.nanoTime() - start;
+		totalUpdateNanos += lastUpdateNanos;
+		return result;
+	}
+
+	// P(Lk|c1:t) = alpha * P(Lk|c1:k) * P(ck+1:t|Lk), t - d <= k <= t
+	private double[] smooth(int k) {
+		// the first b = P(ct+1:t|Lt) = 1
+		for (int c = 0; c < size; c++)
+			b[c] = 1;
+		for (int i = steps; i > k; i--) {
+			problem.backwardStep(b, tmp, colors[i % lag]);
+			double[] swap = b;
+			b = tmp;
+			tmp = swap;
+		}
+
+		double[] fv = forward[k % forward.length];
+		double sum = 0;
+		for (int c = 0; c < size; c++) {
+			smoothed[c] = fv[c] * b[c];
+			sum += smoothed[c];
+		}
+		for (int c = 0; c < size; c++)
+			smoothed[c] = smoothed[c] / sum;
+		return smoothed;
+	}
+
+	// at the end of the readings: P(Lk|c1:t) for the last d steps that were not
+	// 		handed out yet (k = max(0, t-d+1) ... t), in time order
+	public void flush(BeliefConsumer consumer) {
+		for (int k = Math.max(0, steps - lag + 1); k <= steps; k++)
+			consumer.accept(k, smooth(k));
+	}
+
+	public long getLastUpdateNanos() {
+		return lastUpdateNanos;
+	}
+
+	public double getMeanUpdateNanos() {
+		return steps == 0 ? 0 : (double) totalUpdateNanos / steps;
+	}
+
+}
@@ -0,0 +1,280 @@
+import java.util.ArrayList;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+
+
+// belief drawn as a heatmap on one Canvas, for mazes too large for MazeView
+// the belief is kept in an image with one pixel per location (row 0 is the top,
+// 		y = height - 1); a new belief only writes the pixels whose color changed,
+// 		and the canvas only redraws the rectangle around them, once per frame.
+// colors: log scale of P / max P over DECADES decades, walls dark gray.
+// scroll to zoom around the mouse, drag to pan.
+public final class HeatmapView extends Pane {
+
+	// decades of probability below the max that still get a color
+	public static final int DECADES = 6;
+
+	private static final int WALL = 0xff303030;
+	private static final Color BACKGROUND = Color.rgb(16, 16, 16);
+	private static final int[] PALETTE = buildPalette();
+
+	private static Color[] pieceColors = {Color.WHITE, Color.LIGHTBLUE, Color.ORANGE, Color.VIOLET, Color.CRIMSON};
+
+	private Maze maze;
+	private Canvas canvas;
+	private WritableImage image;
+	private PixelWriter pixels;
+
+	// palette index shown at each pixel (row-major), -1 for walls
+	private short[] shown;
+
+	// screen = (pixel - origin) * scale
+	private double scale;
+	private double originX;
+	private double originY;
+	private double dragX;
+	private double dragY;
+
+	// dirty pixels: minX > maxX when there are none
+	private int dirtyMinX;
+	private int dirtyMinY;
+	private int dirtyMaxX;
+	private int dirtyMaxY;
+	private boolean fullRedraw;
+
+	// pieces at (x, y) in maze coordinates, may be between two locations
+	private ArrayList<double[]> pieces = new ArrayList<double[]>();
+
+	public HeatmapView(Maze m, double width, double height) {
+		maze = m;
+		setPrefSize(width, height);
+
+		canvas = new Canvas(width, height);
+		canvas.widthProperty().bind(widthProperty());
+		canvas.heightProperty().bind(heightProperty());
+		canvas.widthProperty().addListener((o, old, now) -> fullRedraw = true);
+		canvas.heightProperty().addListener((o, old, now) -> fullRedraw = true);
+		getChildren().add(canvas);
+
+		image = new WritableImage(maze.width, maze.height);
+		pixels = image.getPixelWriter();
+		shown = new short[maze.width * maze.height];
+		for (int y = 0; y < maze.height; y++)
+			for (int x = 0; x < maze.width; x++) {
+				int row = maze.height - y - 1;
+				if (maze.isLegal(x, y))
+					pixels.setArgb(x, row, PALETTE[0]);
+				else {
+					pixels.setArgb(x, row, WALL);
+					shown[row * maze.width + x] = -1;
+				}
+			}
+		clean();
+
+		scale = Math.min(width / maze.width, height / maze.height);
+		fullRedraw = true;
+
+		setOnScroll(this::zoom);
+		setOnMousePressed(this::startDrag);
+		setOnMouseDragged(this::drag);
+
+		// redraw at most once per frame, and only if something changed
+		new AnimationTimer() {
+			public void handle(long now) {
+				redraw();
+			}
+		}.start();
+	}
+
+	// 256 colors from black through purple and orange to light yellow
+	private static int[] buildPalette() {
+		int[][] stops = {{0, 0, 4}, {87, 16, 110}, {188, 55, 84}, {249, 142, 9}, {252, 255, 164}};
+		int[] palette = new int[256];
+		for (int i = 0; i < 256; i++) {
+			double t = i / 255.0 * (stops.length - 1);
+			int k = Math.min((int) t, stops.length - 2);
+			double f = t - k;
+			int r = (int) Math.round(stops[k][0] + f * (stops[k + 1][0] - stops[k][0]));
+			int g = (int) Math.round(stops[k][1] + f * (stops[k + 1][1] - stops[k][1]));
+			int b = (int) Math.round(stops[k][2] + f * (stops[k + 1][2] - stops[k][2]));
+			palette[i] = 0xff000000 | r << 16 | g << 8 | b;
+		}
+		return palette;
+	}
+
+	// palette index of p / max: 0 for 0, then DECADES decades up to 255
+	private static int colorIndex(double v) {
+		if (!(v > 0))
+			return 0;
+		double l = 1 + Math.log10(v) / DECADES;
+		if (l <= 0)
+			return 1;
+		return Math.min(255, 1 + (int) (l * 254));
+	}
+
+	// new belief, indexed by state (Maze.getState)
+	public void setBelief(double[] belief) {
+		double max = 0;
+		for (double p: belief)
+			if (p > max)
+				max = p;
+		for (int s = 0; s < belief.length; s++)
+			setCell(maze.getStateX(s), maze.getStateY(s), max > 0 ? belief[s] / max : 0);
+	}
+
+	// new belief as a [height][width] grid, as from getProbDistr
+	public void setBelief(double[][] grid) {
+		double max = 0;
+		for (double[] row: grid)
+			for (double p: row)
+				if (p > max)
+					max = p;
+		for (int y = 0; y < maze.height; y++)
+			for (int x = 0; x < maze.width; x++)
+				if (maze.isLegal(x, y))
+					setCell(x, y, max > 0 ? grid[y][x] / max : 0);
+	}
+
+	private void setCell(int x, int y, double v) {
+		int row = maze.height - y - 1;
+		int i = row * maze.width + x;
+		short index = (short) colorIndex(v);
+		if (shown[i] == index)
+			return;
+		shown[i] = index;
+		pixels.setArgb(x, row, PALETTE[index]);
+		markDirty(x, row, x, row);
+	}
+
+	// add a piece at location (x, y), returns its number
+	public int addPiece(int x, int y) {
+		pieces.add(new double[]{x, y});
+		markPiece(pieces.size() - 1);
+		return pieces.size() - 1;
+	}
+
+	// move piece i to (x, y); fractional positions are drawn between locations
+	public void setPiece(int i, double x, double y) {
+		markPiece(i);
+		pieces.get(i)[0] = x;
+		pieces.get(i)[1] = y;
+		markPiece(i);
+	}
+
+	private void markPiece(int i) {
+		double[] p = pieces.get(i);
+		int x = (int) Math.floor(p[0]);
+		int row = maze.height - 1 - (int) Math.ceil(p[1]);
+		// a piece is at least 2 pixels wide, more than a location when zoomed out
+		int margin = (int) Math.ceil(pieceRadius() / scale);
+		markDirty(x - margin, row - margin, x + 1 + margin, row + 1 + margin);
+	}
+
+	private double pieceRadius() {
+		return Math.max(2, scale * 0.3);
+	}
+
+	private void markDirty(int x0, int y0, int x1, int y1) {
+		dirtyMinX = Math.min(dirtyMinX, Math.max(0, x0));
+		dirtyMinY = Math.min(dirtyMinY, Math.max(0, y0));
+		dirtyMaxX = Math.max(dirtyMaxX, Math.min(maze.width - 1, x1));
+		dirtyMaxY = Math.max(dirtyMaxY, Math.min(maze.height - 1, y1));
+	}
+
+	private void clean() {
+		dirtyMinX = Integer.MAX_VALUE;
+		dirtyMinY = Integer.MAX_VALUE;
+		dirtyMaxX = -1;
+		dirtyMaxY = -1;
+	}
+
+	// zoom so that the whole maze is visible
+	public void fit() {
+		scale = Math.min(canvas.getWidth() / maze.width, canvas.getHeight() / maze.height);
+		originX = 0;
+		originY = 0;
+		fullRedraw = true;
+	}
+
+	private void zoom(ScrollEvent e) {
+		double factor = e.getDeltaY() > 0 ? 1.25 : 1 / 1.25;
+		double min = 0.5 * Math.min(canvas.getWidth() / maze.width, canvas.getHeight() / maze.height);
+		double next = Math.max(min, Math.min(64, scale * factor));
+		// keep the pixel under the mouse in place
+		originX += e.getX() / scale - e.getX() / next;
+		originY += e.getY() / scale - e.getY() / next;
+		scale = next;
+		fullRedraw = true;
+	}
+
+	private void startDrag(MouseEvent e) {
+		dragX = e.getX();
+		dragY = e.getY();
+	}
+
+	private void drag(MouseEvent e) {
+		originX -= (e.getX() - dragX) / scale;
+		originY -= (e.getY() - dragY) / scale;
+		dragX = e.getX();
+		dragY = e.getY();
+		fullRedraw = true;
+	}
+
+	private void redraw() {
+		GraphicsContext gc = canvas.getGraphicsContext2D();
+		gc.setImageSmoothing(false);
+
+		int x0, y0, x1, y1;
+		if (fullRedraw) {
+			// the visible pixels
+			x0 = Math.max(0, (int) Math.floor(originX));
+			y0 = Math.max(0, (int) Math.floor(originY));
+			x1 = Math.min(maze.width - 1, (int) Math.floor(originX + canvas.getWidth() / scale));
+			y1 = Math.min(maze.height - 1, (int) Math.floor(originY + canvas.getHeight() / scale));
+			gc.setFill(BACKGROUND);
+			gc.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+		}
+		else if (dirtyMinX <= dirtyMaxX) {
+			x0 = dirtyMinX;
+			y0 = dirtyMinY;
+			x1 = dirtyMaxX;
+			y1 = dirtyMaxY;
+		}
+		else
+			return;
+		fullRedraw = false;
+		clean();
+		if (x0 > x1 || y0 > y1)
+			return;
+
+		double sx = (x0 - originX) * scale;
+		double sy = (y0 - originY) * scale;
+		double sw = (x1 - x0 + 1) * scale;
+		double sh = (y1 - y0 + 1) * scale;
+
+		gc.save();
+		gc.beginPath();
+		gc.rect(sx, sy, sw, sh);
+		gc.clip();
+		gc.drawImage(image, x0, y0, x1 - x0 + 1, y1 - y0 + 1, sx, sy, sw, sh);
+
+		double radius = pieceRadius();
+		for (int i = 0; i < pieces.size(); i++) {
+			double[] p = pieces.get(i);
+			double cx = (p[0] + 0.5 - originX) * scale;
+			double cy = (maze.height - p[1] - 0.5 - originY) * scale;
+			gc.setFill(pieceColors[i % pieceColors.length]);
+			gc.fillOval(cx - radius, cy - radius, 2 * radius, 2 * radius);
+		}
+		gc.restore();
+	}
+
+}
@@ -0,0 +1,230 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+
+// Java Flight Recorder events of the inference, and the hooks the hot paths call
+// 		(record with e.g. -XX:StartFlightRecording:filename=maze.jfr,settings=profile;
+// 		the step events are disabled unless turned on in the settings)
+// each hook first checks active(): when neither InferenceMetrics nor the events are
+// 		enabled, a step only pays for that check, nothing is timed or allocated.
+// the same values go to the events and to InferenceMetrics.
+public class InferenceEvents {
+
+	@Name("maze.FilterStep")
+	@Label("Filter Step")
+	@Category({"Maze Inference"})
+	@Description("One filtering step P(Xt|e1:t) -> P(Xt+1|e1:t+1)")
+	@Enabled(false)
+	static class FilterStep extends Event {
+		// predict and update run in one pass over the bands (filterStep)
+		@Label("Predict and Update")
+		@Timespan(Timespan.NANOSECONDS)
+		long predictUpdateNanos;
+
+		@Label("Normalize")
+		@Timespan(Timespan.NANOSECONDS)
+		long normalizeNanos;
+
+		@Label("Normalizer")
+		@Description("P(et+1|e1:t), the sum before alpha")
+		double normalizer;
+
+		@Label("Entropy")
+		@Description("Entropy of the new belief, in nats")
+		double entropy;
+
+		@Label("States")
+		int states;
+	}
+
+	@Name("maze.BackwardStep")
+	@Label("Backward Step")
+	@Category({"Maze Inference"})
+	@Enabled(false)
+	static class BackwardStep extends Event {
+		@Label("Normalizer")
+		double normalizer;
+	}
+
+	@Name("maze.Viterbi")
+	@Label("Viterbi")
+	@Category({"Maze Inference"})
+	static class Viterbi extends Event {
+		@Label("Steps")
+		int steps;
+
+		@Label("Co-optimal Paths")
+		long paths;
+
+		@Label("Log Probability")
+		double logProb;
+	}
+
+	@Name("maze.InferenceCall")
+	@Label("Inference Call")
+	@Category({"Maze Inference"})
+	@Description("One call of the public inference methods")
+	static class InferenceCall extends Event {
+		@Label("Method")
+		String method;
+
+		@Label("Steps")
+		int steps;
+
+		@Label("Allocated")
+		@DataAmount(DataAmount.BYTES)
+		long allocatedBytes;
+	}
+
+	@Name("maze.NumericalIssue")
+	@Label("Numerical Issue")
+	@Category({"Maze Inference"})
+	@Description("A normalizer that is 0, subnormal or NaN: the beliefs that follow are not reliable")
+	static class NumericalIssue extends Event {
+		@Label("Where")
+		String where;
+
+		@Label("Value")
+		double value;
+	}
+
+	private static final EventType FILTER_STEP = EventType.getEventType(FilterStep.class);
+	private static final EventType BACKWARD_STEP = EventType.getEventType(BackwardStep.class);
+	private static final EventType VITERBI = EventType.getEventType(Viterbi.class);
+	private static final EventType INFERENCE_CALL = EventType.getEventType(InferenceCall.class);
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	static boolean active(EventType type) {
+		return InferenceMetrics.isEnabled() || type.isEnabled();
+	}
+
+	// true if filterStep should be timed
+	static boolean filterStepActive() {
+		return active(FILTER_STEP);
+	}
+
+	static void filterStep(double[] belief, double normalizer, long predictUpdateNanos, long normalizeNanos) {
+		double entropy = 0;
+		for (double p: belief)
+			if (p > 0)
+				entropy -= p * Math.log(p);
+
+		if (InferenceMetrics.isEnabled()) {
+			InferenceMetrics.PREDICT_UPDATE_NANOS.record(predictUpdateNanos);
+			InferenceMetrics.NORMALIZE_NANOS.record(normalizeNanos);
+			InferenceMetrics.NORMALIZER.record(normalizer);
+			InferenceMetrics.ENTROPY.record(entropy);
+		}
+		FilterStep e = new FilterStep();
+		if (e.shouldCommit()) {
+			e.predictUpdateNanos = predictUpdateNanos;
+			e.normalizeNanos = normalizeNanos;
+			e.normalizer = normalizer;
+			e.entropy = entropy;
+			e.states = belief.length;
+			e.commit();
+		}
+	}
+
+	static boolean backwardStepActive() {
+		return active(BACKWARD_STEP);
+	}
+
+	static void backwardStep(double normalizer, long nanos) {
+		if (InferenceMetrics.isEnabled())
+			InferenceMetrics.BACKWARD_NANOS.record(nanos);
+		BackwardStep e = new BackwardStep();
+		if (e.shouldCommit()) {
+			e.normalizer = normalizer;
+			e.commit();
+		}
+	}
+
+	static void viterbi(ViterbiDecoder.Result result, int steps) {
+		if (!active(VITERBI))
+			return;
+		if (InferenceMetrics.isEnabled())
+			InferenceMetrics.VITERBI_PATHS.record(result.getPathCount());
+		Viterbi e = new Viterbi();
+		if (e.shouldCommit()) {
+			e.steps = steps;
+			e.paths = result.getPathCount();
+			e.logProb = result.getLogProb();
+			e.commit();
+		}
+	}
+
+	// check of a normalizer; free unless it is 0, subnormal or NaN
+	static void checkNormalizer(String where, double normalizer) {
+		if (normalizer >= Double.MIN_NORMAL)
+			return;
+		if (InferenceMetrics.isEnabled())
+			InferenceMetrics.UNDERFLOWS.record(normalizer);
+		NumericalIssue e = new NumericalIssue();
+		if (e.shouldCommit()) {
+			e.where = where;
+			e.value = normalizer;
+			e.commit();
+		}
+	}
+
+	// a public inference call: begin returns null when nothing is recorded
+	static class Call {
+		String method;
+		long start;
+		long allocated;
+		InferenceCall event;
+	}
+
+	static Call begin(String method) {
+		if (!active(INFERENCE_CALL))
+			return null;
+		Call call = new Call();
+		call.method = method;
+		call.event = new InferenceCall();
+		call.event.begin();
+		call.allocated = allocatedBytes();
+		call.start = System.nanoTime();
+		return call;
+	}
+
+	static void end(Call call, int steps) {
+		if (call == null)
+			return;
+		long nanos = System.nanoTime() - call.start;
+		long allocated = allocatedBytes() - call.allocated;
+
+		if (InferenceMetrics.isEnabled()) {
+			InferenceMetrics.get("call." + call.method + ".nanos").record(nanos);
+			InferenceMetrics.get("call." + call.method + ".allocatedBytes").record(allocated);
+		}
+		InferenceCall e = call.event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.method = call.method;
+			e.steps = steps;
+			e.allocatedBytes = allocated;
+			e.commit();
+		}
+	}
+
+	// bytes allocated so far by the calling thread, 0 if the JVM cannot tell
+	// 		(work done on other threads, parallelism > 1, is not counted)
+	private static long allocatedBytes() {
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+		return 0;
+	}
+
+}
@@ -0,0 +1,123 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// registry of named metrics of the inference (count, sum, min, max of recorded values)
+// off by default: the hot paths only record when setEnabled(true), or when the
+// 		matching InferenceEvents are enabled in a flight recording.
+// metrics are safe to record from many threads.
+public class InferenceMetrics {
+
+	private static volatile boolean enabled;
+
+	private static final ConcurrentHashMap<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+
+	// metrics of the hot paths, see InferenceEvents
+	static final Metric PREDICT_UPDATE_NANOS = get("filter.predictUpdate.nanos");
+	static final Metric NORMALIZE_NANOS = get("filter.normalize.nanos");
+	static final Metric NORMALIZER = get("filter.normalizer");
+	static final Metric ENTROPY = get("filter.entropy");
+	static final Metric BACKWARD_NANOS = get("backward.nanos");
+	static final Metric VITERBI_PATHS = get("viterbi.paths");
+	// normalizers that are 0, subnormal or NaN
+	static final Metric UNDERFLOWS = get("numerical.underflows");
+
+	public static class Metric {
+		private final String name;
+		private final LongAdder count = new LongAdder();
+		private final DoubleAdder sum = new DoubleAdder();
+		private final DoubleAccumulator min = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+		private final DoubleAccumulator max = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+
+		Metric(String name) {
+			this.name = name;
+		}
+
+		public void record(double value) {
+			count.increment();
+			sum.add(value);
+			min.accumulate(value);
+			max.accumulate(value);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public double getSum() {
+			return sum.sum();
+		}
+
+		public double getMean() {
+			long n = count.sum();
+			return n == 0 ? 0 : sum.sum() / n;
+		}
+
+		public double getMin() {
+			return min.get();
+		}
+
+		public double getMax() {
+			return max.get();
+		}
+
+		void reset() {
+			count.reset();
+			sum.reset();
+			min.reset();
+			max.reset();
+		}
+
+		public String toString() {
+			return String.format("%-40s %10d %14.4g %14.4g %14.4g", name, getCount(), getMean(), getMin(), getMax());
+		}
+	}
+
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	// the metric of that name, created if needed
+	public static Metric get(String name) {
+		Metric m = metrics.get(name);
+		if (m == null) {
+			m = new Metric(name);
+			Metric old = metrics.putIfAbsent(name, m);
+			if (old != null)
+				m = old;
+		}
+		return m;
+	}
+
+	// all metrics by name
+	public static Map<String, Metric> getAll() {
+		return new TreeMap<String, Metric>(metrics);
+	}
+
+	public static void reset() {
+		for (Metric m: metrics.values())
+			m.reset();
+	}
+
+	// table of the metrics that were recorded
+	public static String report() {
+		StringBuilder s = new StringBuilder(String.format("%-40s %10s %14s %14s %14s%n", "metric", "count", "mean", "min", "max"));
+		for (Metric m: getAll().values())
+			if (m.getCount() > 0)
+				s.append(m).append('\n');
+		return s.toString();
+	}
+
+}
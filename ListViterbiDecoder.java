@@ -0,0 +1,239 @@
+
+import java.util.ArrayList;
+
+
+// list Viterbi: the K most likely sequences x0,...,xt given e1:t, best first
+// each location keeps its K best partial paths, sorted by log score:
+// 		score[c][j] = j-th largest log P(x0,...,xt, Xt = c, e1:t)
+// 		score[c][.] at t+1 = log P(et+1|c) + the K largest of
+// 			log P(c|xt) + score[xt][i], over the predecessors xt and i < K
+// the K largest are picked with a bounded min-heap per location; since each
+// 		predecessor's list is sorted, a predecessor stops as soon as its next
+// 		path cannot enter the full heap. one step costs O(N * K log K).
+// the backpointer of (c, j) is (rank i << 3) | predecessor index in the CSR table,
+// 		so different (location, rank) pairs always give different paths.
+public class ListViterbiDecoder {
+
+	private BlindRobotMazeProblem problem;
+	private TransitionModel transModel;
+	private int k;
+
+	// log P(c|from), parallel to transModel.predProb
+	private double[] predLogProb;
+
+	public ListViterbiDecoder(BlindRobotMazeProblem p, int k) {
+		problem = p;
+		transModel = p.getTransitionModel();
+		this.k = Math.max(1, k);
+		// the predecessor index takes the 3 low bits of a backpointer
+		for (int c = 0; c < transModel.size; c++) {
+			int preds = transModel.predStart[c + 1] - transModel.predStart[c];
+			if (preds > ViterbiDecoder.MAX_PREDECESSORS)
+				throw new IllegalArgumentException("state " + c + " has " + preds
+						+ " predecessors, backpointers hold " + ViterbiDecoder.MAX_PREDECESSORS);
+		}
+
+		predLogProb = new double[transModel.predProb.length];
+		for (int i = 0; i < predLogProb.length; i++)
+			predLogProb[i] = Math.log(transModel.predProb[i]);
+	}
+
+	// one of the K best sequences
+	public static class Path {
+		// log P(x0,...,xt, e1:t)
+		public final double logProb;
+		// {x, y} from L0 to Lt
+		public final ArrayList<int[]> locations;
+
+		Path(double logProb, ArrayList<int[]> locations) {
+			this.logProb = logProb;
+			this.locations = locations;
+		}
+	}
+
+	// bounded min-heap of (score, tag), keeps the size largest scores offered
+	private static class Heap {
+		double[] score;
+		int[] tag;
+		int num;
+
+		Heap(int size) {
+			score = new double[size];
+			tag = new int[size];
+		}
+
+		// false if the heap is full and s is not larger than its min
+		boolean offer(double s, int t) {
+			if (num < score.length) {
+				int i = num++;
+				// sift up
+				while (i > 0) {
+					int parent = (i - 1) >>> 1;
+					if (score[parent] <= s)
+						break;
+					score[i] = score[parent];
+					tag[i] = tag[parent];
+					i = parent;
+				}
+				score[i] = s;
+				tag[i] = t;
+				return true;
+			}
+			if (s <= score[0])
+				return false;
+			siftDown(s, t, num);
+			return true;
+		}
+
+		// put (s, t) at the root of a heap of n entries and sift it down
+		private void siftDown(double s, int t, int n) {
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= n)
+					break;
+				if (child + 1 < n && score[child + 1] < score[child])
+					child++;
+				if (s <= score[child])
+					break;
+				score[i] = score[child];
+				tag[i] = tag[child];
+				i = child;
+			}
+			score[i] = s;
+			tag[i] = t;
+		}
+
+		// empty the heap into out[off ...], largest first; returns the number of entries
+		int drain(double[] outScore, int[] outTag, int off) {
+			int n = num;
+			for (int i = n - 1; i >= 0; i--) {
+				outScore[off + i] = score[0];
+				outTag[off + i] = tag[0];
+				int last = --num;
+				if (last > 0)
+					siftDown(score[last], tag[last], last);
+			}
+			return n;
+		}
+	}
+
+	// the K most likely sequences for the evidence (fewer if there are not K)
+	public ArrayList<Path> decode(int[] colors) {
+		int size = transModel.size;
+
+		// score[c * k + j], num[c]: partial paths kept for location c
+		double[] score = new double[size * k];
+		double[] next = new double[size * k];
+		int[] num = new int[size];
+		int[] nextNum = new int[size];
+
+		// Initial probability distribution: log P(L0), one path per location
+		double[] init = problem.initialDistr();
+		for (int c = 0; c < size; c++) {
+			score[c * k] = Math.log(init[c]);
+			num[c] = init[c] > 0 ? 1 : 0;
+		}
+
+		// back[t][c * k + j]: backpointer of (c, j) at step t+1
+		int[][] back = new int[colors.length][];
+
+		// sum of the shifts, to get back the real log probability
+		double logOffset = 0;
+
+		RowBands bands = problem.getBands();
+		for (int t = 0; t < colors.length; t++) {
+			final int[] b = new int[size * k];
+			final double[] sensor = problem.likelihood(colors[t]);
+			final double[] score_t = score;
+			final double[] next_t = next;
+			final int[] num_t = num;
+			final int[] nextNum_t = nextNum;
+
+			final double stepMax = bands.max((lo, hi) -> step(score_t, num_t, sensor, next_t, nextNum_t, b, lo, hi));
+
+			// shift by the max, as in ViterbiDecoder
+			if (stepMax != Double.NEGATIVE_INFINITY) {
+				bands.forEach((lo, hi) -> {
+					for (int i = lo * k; i < hi * k; i++)
+						next_t[i] -= stepMax;
+					return 0;
+				});
+				logOffset += stepMax;
+			}
+
+			back[t] = b;
+			double[] tmp = score;
+			score = next;
+			next = tmp;
+			int[] tmpNum = num;
+			num = nextNum;
+			nextNum = tmpNum;
+		}
+
+		// the K best over all end locations
+		Heap heap = new Heap(k);
+		for (int c = 0; c < size; c++)
+			for (int j = 0; j < num[c]; j++)
+				if (score[c * k + j] == Double.NEGATIVE_INFINITY || !heap.offer(score[c * k + j], c * k + j))
+					break;
+		double[] endScore = new double[k];
+		int[] end = new int[k];
+		int found = heap.drain(endScore, end, 0);
+
+		ArrayList<Path> paths = new ArrayList<Path>(found);
+		for (int i = 0; i < found; i++)
+			paths.add(new Path(endScore[i] + logOffset, backtrack(back, end[i] / k, end[i] % k)));
+		return paths;
+	}
+
+	// one step for the locations lo ... hi-1, returns the max of the new scores
+	private double step(double[] score, int[] num, double[] sensor,
+			double[] next, int[] nextNum, int[] back, int lo, int hi) {
+		Heap heap = new Heap(k);
+		double stepMax = Double.NEGATIVE_INFINITY;
+		for (int c = lo; c < hi; c++) {
+			// for each xt and rank i, log P(Xt+1|xt) + score[xt][i]
+			int first = transModel.predStart[c];
+			for (int p = first; p < transModel.predStart[c + 1]; p++) {
+				int from = transModel.predFrom[p];
+				for (int i = 0; i < num[from]; i++) {
+					double tmp = predLogProb[p] + score[from * k + i];
+					if (tmp == Double.NEGATIVE_INFINITY || !heap.offer(tmp, (i << 3) | (p - first)))
+						break;
+				}
+			}
+
+			double log = Math.log(sensor[c]);
+			int n = log == Double.NEGATIVE_INFINITY ? 0 : heap.num;
+			heap.drain(next, back, c * k);
+			for (int j = 0; j < n; j++)
+				next[c * k + j] += log;
+			for (int j = n; j < k; j++)
+				next[c * k + j] = Double.NEGATIVE_INFINITY;
+			nextNum[c] = n;
+			if (n > 0 && next[c * k] > stepMax)
+				stepMax = next[c * k];
+		}
+		return stepMax;
+	}
+
+	// the sequence ending with rank j at location c
+	private ArrayList<int[]> backtrack(int[][] back, int c, int j) {
+		int steps = back.length;
+		int[] loc = new int[steps + 1];
+		loc[steps] = c;
+		for (int t = steps; t > 0; t--) {
+			int code = back[t - 1][c * k + j];
+			c = transModel.predFrom[transModel.predStart[c] + (code & 7)];
+			j = code >>> 3;
+			loc[t - 1] = c;
+		}
+
+		ArrayList<int[]> path = new ArrayList<int[]>(steps + 1);
+		for (int t = 0; t <= steps; t++)
+			path.add(new int[]{transModel.getX(loc[t]), transModel.getY(loc[t])});
+		return path;
+	}
+
+}
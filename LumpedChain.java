@@ -0,0 +1,450 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+// the transition model reduced by exact lumping: states that the sensor and the motion
+// 		model cannot tell apart are merged into blocks.
+// partition refinement: start with one block per likelihood vector (the color class),
+// 		then split blocks until the states of each block B have, from every block C,
+// 		the same multiset of P(state|predecessor in C).
+// 		the splitters are processed from a work list: splitting by C only touches the
+// 		successors of C, and when a block B is split, all but the largest part go on
+// 		the list (the largest part's multisets are those of B minus the others'),
+// 		so each state is in O(log N) splitters and the whole costs O(M log N log M)
+// 		for M transitions.
+// in the stable partition every state of a block B gets, from every block C, the same
+// 		transition probabilities, so a belief that is uniform on each block stays uniform:
+// 		filtering runs on the blocks with
+// 			Q(B|C) = |B| * sum_{p in C} P(s|p) / |C|		(any s in B)
+// 		and Viterbi with
+// 			M(B|C) = max_{p in C} P(s|p)
+// 		and the results are expanded back to the states.
+// P(L0) is uniform, so the lumped results are exact.
+public class LumpedChain {
+
+	private BlindRobotMazeProblem problem;
+	private TransitionModel transModel;
+
+	// block[s]: block of state s; first[b]: a state of block b; size[b]: its number of states
+	private int[] block;
+	private int[] first;
+	private int[] size;
+	private int numBlocks;
+	private int splitters;
+	private long buildNanos;
+
+	// blocks C with P(B|C) > 0: predFrom[predStart[B] ... predStart[B+1]-1],
+	// 		with Q(B|C) in predProb and M(B|C) in predMax
+	private int[] predStart;
+	private int[] predFrom;
+	private double[] predProb;
+	private double[] predMax;
+
+	// likelihood[s][B] = P(C==s|any state of B), for s in 0 ... Maze.NUM_COLORS
+	private double[][] likelihood;
+
+	LumpedChain(BlindRobotMazeProblem p) {
+		long start = System.nanoTime();
+		problem = p;
+		transModel = p.getTransitionModel();
+
+		refine();
+		buildChain();
+
+		buildNanos = System.nanoTime() - start;
+	}
+
+	private void refine() {
+		int n = transModel.size;
+		int[] succStart = transModel.succStart;
+		int[] succTo = transModel.succTo;
+
+		// first partition: equal likelihood vectors, one color after the other
+		block = new int[n];
+		long[] key = new long[n];
+		for (int c = 0; c <= Maze.NUM_COLORS; c++) {
+			double[] like = problem.likelihood(c);
+			double[] values = distinct(like);
+			for (int s = 0; s < n; s++)
+				key[s] = (long) block[s] * values.length + Arrays.binarySearch(values, like[s]);
+			numBlocks = dense(key, n, block);
+		}
+
+		// the predecessors of s in a block C, as counts of each distinct probability:
+		// 		4 bits per probability, added up in one long, so equal multisets of
+		// 		P(s|p) give equal keys
+		double[] probs = distinct(transModel.succProb);
+		int maxDegree = 0;
+		for (int s = 0; s < n; s++)
+			maxDegree = Math.max(maxDegree, transModel.predStart[s + 1] - transModel.predStart[s]);
+		if (probs.length > 16 || maxDegree > 15)
+			throw new IllegalArgumentException("lumping needs at most 16 transition probabilities and 15 predecessors, got "
+					+ probs.length + " and " + maxDegree);
+		long[] unit = new long[succTo.length];
+		for (int k = 0; k < unit.length; k++)
+			unit[k] = 1L << (4 * Arrays.binarySearch(probs, transModel.succProb[k]));
+
+		// the states of block b are elems[start[b] ... end[b]-1]; pos[s]: index of s in elems
+		int[] elems = new int[n];
+		int[] pos = new int[n];
+		int[] start = new int[n + 1];
+		int[] end = new int[n + 1];
+		for (int s = 0; s < n; s++)
+			end[block[s]]++;
+		for (int b = 1; b < numBlocks; b++)
+			end[b] += end[b - 1];
+		for (int s = n - 1; s >= 0; s--) {
+			pos[s] = --end[block[s]];
+			elems[pos[s]] = s;
+		}
+		for (int b = 0; b < numBlocks; b++)
+			start[b] = end[b];
+		for (int b = 0; b < numBlocks; b++)
+			end[b] = b + 1 < numBlocks ? start[b + 1] : n;
+
+		// splitters still to process; every block of the first partition is one
+		int[] work = new int[n];
+		boolean[] inWork = new boolean[n];
+		int numWork = 0;
+		for (int b = 0; b < numBlocks; b++) {
+			work[numWork++] = b;
+			inWork[b] = true;
+		}
+
+		int[] splitter = new int[n];
+		int[] touched = new int[n];
+		long[] groupKey = new long[n];
+		int[] group = new int[n];
+		int[] order = new int[n];
+		int[] count = new int[n + 1];
+		Arrays.fill(key, 0);
+
+		while (numWork > 0) {
+			int c = work[--numWork];
+			inWork[c] = false;
+			splitters++;
+
+			// the states of C may move while C is split below: work on a copy
+			int size = end[c] - start[c];
+			System.arraycopy(elems, start[c], splitter, 0, size);
+
+			// key of every state with a predecessor in C
+			int m = 0;
+			for (int i = 0; i < size; i++) {
+				int p = splitter[i];
+				for (int k = succStart[p]; k < succStart[p + 1]; k++) {
+					int s = succTo[k];
+					if (key[s] == 0)
+						touched[m++] = s;
+					key[s] += unit[k];
+				}
+			}
+
+			// groups of touched states with the same block and key, ordered by block
+			for (int i = 0; i < m; i++)
+				groupKey[i] = key[touched[i]];
+			int numKeys = dense(groupKey, m, group);
+			for (int i = 0; i < m; i++)
+				groupKey[i] = (long) block[touched[i]] * numKeys + group[i];
+			int numGroups = dense(groupKey, m, group);
+			Arrays.fill(count, 0, numGroups + 1, 0);
+			for (int i = 0; i < m; i++)
+				count[group[i] + 1]++;
+			for (int g = 0; g < numGroups; g++)
+				count[g + 1] += count[g];
+			for (int i = 0; i < m; i++)
+				order[count[group[i]]++] = touched[i];
+			for (int i = 0; i < m; i++)
+				key[touched[i]] = 0;
+
+			// split each block the groups fall in; count[g] is now the end of group g
+			for (int g = 0, i = 0; g < numGroups; ) {
+				int b = block[order[i]];
+				int firstGroup = g;
+				int firstState = i;
+				while (g < numGroups && block[order[i]] == b)
+					i = count[g++];
+				int untouched = end[b] - start[b] - (i - firstState);
+				if (g - firstGroup == 1 && untouched == 0)
+					continue;
+
+				// the untouched states stay in b, or else the first group does;
+				// 		the other groups become new blocks, cut from the end of b
+				int added = numBlocks;
+				int largest = b;
+				int largestSize = untouched > 0 ? untouched : count[firstGroup] - firstState;
+				for (int h = untouched > 0 ? firstGroup : firstGroup + 1; h < g; h++) {
+					int from = h == 0 ? 0 : count[h - 1];
+					int nb = numBlocks++;
+					end[nb] = end[b];
+					for (int j = from; j < count[h]; j++) {
+						int s = order[j];
+						int last = elems[--end[b]];
+						elems[pos[s]] = last;
+						pos[last] = pos[s];
+						elems[end[b]] = s;
+						pos[s] = end[b];
+						block[s] = nb;
+					}
+					start[nb] = end[b];
+					if (count[h] - from > largestSize) {
+						largest = nb;
+						largestSize = count[h] - from;
+					}
+				}
+
+				// b still pending: so are all of its parts. else the largest part is
+				// 		left out, its keys follow from those of b and of the other parts
+				boolean pending = inWork[b];
+				if (!pending && largest != b) {
+					work[numWork++] = b;
+					inWork[b] = true;
+				}
+				for (int nb = added; nb < numBlocks; nb++)
+					if (pending || nb != largest) {
+						work[numWork++] = nb;
+						inWork[nb] = true;
+					}
+			}
+		}
+	}
+
+	// the distinct values of v, sorted
+	private static double[] distinct(double[] v) {
+		double[] sorted = v.clone();
+		Arrays.sort(sorted);
+		int num = 0;
+		for (int i = 0; i < sorted.length; i++)
+			if (num == 0 || Double.compare(sorted[num - 1], sorted[i]) != 0)
+				sorted[num++] = sorted[i];
+		return Arrays.copyOf(sorted, num);
+	}
+
+	// id[i] = rank of key[i] among the distinct keys of key[0 ... n-1]
+	// returns the number of distinct keys
+	private static int dense(long[] key, int n, int[] id) {
+		long[] sorted = Arrays.copyOf(key, n);
+		Arrays.sort(sorted);
+		int num = 0;
+		for (int i = 0; i < n; i++)
+			if (num == 0 || sorted[num - 1] != sorted[i])
+				sorted[num++] = sorted[i];
+		for (int i = 0; i < n; i++)
+			id[i] = Arrays.binarySearch(sorted, 0, num, key[i]);
+		return num;
+	}
+
+	private void buildChain() {
+		int n = transModel.size;
+		first = new int[numBlocks];
+		size = new int[numBlocks];
+		Arrays.fill(first, -1);
+		for (int s = 0; s < n; s++) {
+			if (first[block[s]] < 0)
+				first[block[s]] = s;
+			size[block[s]]++;
+		}
+
+		// predecessor blocks of each block, from one of its states
+		predStart = new int[numBlocks + 1];
+		int[] from = new int[transModel.predFrom.length];
+		double[] prob = new double[from.length];
+		double[] max = new double[from.length];
+		int num = 0;
+		for (int b = 0; b < numBlocks; b++) {
+			predStart[b] = num;
+			int s = first[b];
+			for (int k = transModel.predStart[s]; k < transModel.predStart[s + 1]; k++) {
+				int c = block[transModel.predFrom[k]];
+				double p = transModel.predProb[k];
+				int j = predStart[b];
+				while (j < num && from[j] != c)
+					j++;
+				if (j == num) {
+					from[num] = c;
+					prob[num] = 0;
+					max[num] = 0;
+					num++;
+				}
+				prob[j] += p;
+				max[j] = Math.max(max[j], p);
+			}
+			for (int j = predStart[b]; j < num; j++)
+				prob[j] = prob[j] * size[b] / size[from[j]];
+		}
+		predStart[numBlocks] = num;
+		predFrom = Arrays.copyOf(from, num);
+		predProb = Arrays.copyOf(prob, num);
+		predMax = Arrays.copyOf(max, num);
+
+		likelihood = new double[Maze.NUM_COLORS + 1][numBlocks];
+		for (int s = 0; s <= Maze.NUM_COLORS; s++) {
+			double[] like = problem.likelihood(s);
+			for (int b = 0; b < numBlocks; b++)
+				likelihood[s][b] = like[first[b]];
+		}
+	}
+
+	private double[] likelihood(int s) {
+		if (s >= 0 && s < likelihood.length)
+			return likelihood[s];
+		double[] like = problem.likelihood(s);
+		double[] lumped = new double[numBlocks];
+		for (int b = 0; b < numBlocks; b++)
+			lumped[b] = like[first[b]];
+		return lumped;
+	}
+
+	// Filtering on the blocks: P(Xt|e1:t) for t = 0 ... colors.length, as grids
+	public ArrayList<double[][]> getFilteredDistr(int[] colors) {
+		ArrayList<double[][]> probDistrSeq = new ArrayList<double[][]>(colors.length + 1);
+
+		// P(L0 in B) = |B| / N
+		double[] prob = new double[numBlocks];
+		double[] next = new double[numBlocks];
+		for (int b = 0; b < numBlocks; b++)
+			prob[b] = (double) size[b] / transModel.size;
+		probDistrSeq.add(problem.toGrid(expand(prob)));
+
+		for (int color: colors) {
+			double[] like = likelihood(color);
+			double sum = 0;
+			for (int b = 0; b < numBlocks; b++) {
+				double p = 0;
+				for (int k = predStart[b]; k < predStart[b + 1]; k++)
+					p += predProb[k] * prob[predFrom[k]];
+				next[b] = like[b] * p;
+				sum += next[b];
+			}
+			for (int b = 0; b < numBlocks; b++)
+				next[b] = next[b] / sum;
+
+			double[] tmp = prob;
+			prob = next;
+			next = tmp;
+			probDistrSeq.add(problem.toGrid(expand(prob)));
+		}
+		return probDistrSeq;
+	}
+
+	// block belief to state belief: the mass of a block is shared evenly by its states
+	public double[] expand(double[] blockProb) {
+		double[] prob = new double[transModel.size];
+		for (int s = 0; s < prob.length; s++)
+			prob[s] = blockProb[block[s]] / size[block[s]];
+		return prob;
+	}
+
+	// Viterbi on the blocks, expanded to one most likely sequence of locations
+	// 		({x, y} from L0 to Lt); the ties between states of a block are not counted
+	public ArrayList<int[]> getViterbiPath(int[] colors) {
+		return viterbi(colors, null);
+	}
+
+	// log P(x0,...,xt, e1:t) of the most likely sequence
+	public double getViterbiLogProb(int[] colors) {
+		double[] logProb = new double[1];
+		viterbi(colors, logProb);
+		return logProb[0];
+	}
+
+	private ArrayList<int[]> viterbi(int[] colors, double[] logProb) {
+		double[] score = new double[numBlocks];
+		double[] next = new double[numBlocks];
+		Arrays.fill(score, Math.log(1.0 / transModel.size));
+		double[] logMax = new double[predMax.length];
+		for (int k = 0; k < logMax.length; k++)
+			logMax[k] = Math.log(predMax[k]);
+
+		// back[t][B]: block at step t of the best sequence through B at step t+1
+		int[][] back = new int[colors.length][];
+		for (int t = 0; t < colors.length; t++) {
+			double[] like = likelihood(colors[t]);
+			int[] bt = new int[numBlocks];
+			for (int b = 0; b < numBlocks; b++) {
+				double max = Double.NEGATIVE_INFINITY;
+				int arg = -1;
+				for (int k = predStart[b]; k < predStart[b + 1]; k++) {
+					double tmp = logMax[k] + score[predFrom[k]];
+					if (tmp > max) {
+						max = tmp;
+						arg = predFrom[k];
+					}
+				}
+				next[b] = max + Math.log(like[b]);
+				bt[b] = arg;
+			}
+			back[t] = bt;
+			double[] tmp = score;
+			score = next;
+			next = tmp;
+		}
+
+		int end = 0;
+		for (int b = 1; b < numBlocks; b++)
+			if (score[b] > score[end])
+				end = b;
+		if (logProb != null)
+			logProb[0] = score[end];
+
+		// back to states: a predecessor in the previous block with P = M(B|C)
+		int steps = colors.length;
+		int[] loc = new int[steps + 1];
+		int b = end;
+		loc[steps] = first[b];
+		for (int t = steps; t > 0; t--) {
+			int c = back[t - 1][b];
+			int s = loc[t];
+			double best = -1;
+			for (int k = transModel.predStart[s]; k < transModel.predStart[s + 1]; k++)
+				if (block[transModel.predFrom[k]] == c && transModel.predProb[k] > best) {
+					best = transModel.predProb[k];
+					loc[t - 1] = transModel.predFrom[k];
+				}
+			b = c;
+		}
+
+		ArrayList<int[]> path = new ArrayList<int[]>(steps + 1);
+		for (int t = 0; t <= steps; t++)
+			path.add(new int[]{transModel.getX(loc[t]), transModel.getY(loc[t])});
+		return path;
+	}
+
+	public int getNumStates() {
+		return transModel.size;
+	}
+
+	public int getNumBlocks() {
+		return numBlocks;
+	}
+
+	// block of state s
+	public int getBlock(int s) {
+		return block[s];
+	}
+
+	// splitters processed until the partition was stable
+	public int getSplitters() {
+		return splitters;
+	}
+
+	public long getBuildNanos() {
+		return buildNanos;
+	}
+
+	// fraction of the states removed by lumping
+	public double getReduction() {
+		return transModel.size == 0 ? 0 : 1 - (double) numBlocks / transModel.size;
+	}
+
+	public String toString() {
+		return String.format("%d states -> %d blocks (%.1f%% fewer), %d splitters, %.1f ms",
+				transModel.size, numBlocks, 100 * getReduction(), splitters, buildNanos / 1e6);
+	}
+
+	public static void main(String args[]) {
+		Maze m = Maze.readFromFile(args.length > 0 ? args[0] : "simple.maz");
+		System.out.println(new BlindRobotMazeProblem(m).lump());
+	}
+
+}
@@ -1,106 +1,338 @@
-
-
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
 
 public class Maze {
-	final static Charset ENCODING = StandardCharsets.UTF_8;
 
 	// A few useful constants to describe actions
 	public static int[] NORTH = {0, 1};
 	public static int[] EAST = {1, 0};
 	public static int[] SOUTH = {0, -1};
 	public static int[] WEST = {-1, 0};
-	
+
+	// colors are 1 ... NUM_COLORS (r, g, b, y); 0 is no color
+	public static final int NUM_COLORS = 4;
+
 	public int width;
 	public int height;
-	
-	private char[][] grid;
+
+	// packed form of the map, location (x,y) at index y * width + x:
+	// 		colors: one byte per location, r:1 g:2 b:3 y:4 other:0
+	// 		walls: one bit per location
+	private byte[] colors;
+	private long[] walls;
+
+	// dense index of the legal locations (states), in row-major order:
+	// 		stateCell[s]: location y * width + x of state s
+	// 		rowState[y]: first state of row y, rowState[height]: number of states
+	// 		wordRank[w]: number of states before bit word w of walls
+	private int[] stateCell;
+	private int[] rowState;
+	private int[] wordRank;
+
+	// time spent in readFromFile
+	private long loadNanos;
+
+	// hash of the map, computed on first use (0: not computed yet)
+	private long contentHash;
+
+	// the file is mapped in chunks of at most this many bytes
+	private static final long CHUNK = 1 << 30;
 
 	public static Maze readFromFile(String filename) {
-		Maze m = new Maze();
+		long start = System.nanoTime();
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			Maze m = new Maze();
+			long size = channel.size();
 
-		try {
-			List<String> lines = readFile(filename);
-			m.height = lines.size();
-
-			int y = 0;
-			m.grid = new char[m.height][];
-			for (String line : lines) {
-				m.width = line.length();
-				m.grid[m.height - y - 1] = new char[m.width];
-				for (int x = 0; x < line.length(); x++) {
-					// (0, 0) should be bottom left, so flip y as 
-					//  we read from file into array:
-					m.grid[m.height - y - 1][x] = line.charAt(x);
-				}
-				y++;
-
-				// System.out.println(line.length());
-			}
+			// pass 1: width and height, so that y can be flipped in pass 2
+			LineScanner lines = new LineScanner();
+			scan(channel, size, lines);
+			m.height = lines.lines;
+			m.width = lines.width;
+			m.allocate();
+
+			// pass 2: fill the packed form
+			// (0, 0) should be bottom left, so flip y as
+			//  we read from file into array:
+			scan(channel, size, new CellScanner(m));
+			m.buildIndex();
 
+			m.loadNanos = System.nanoTime() - start;
 			return m;
 		} catch (IOException E) {
 			return null;
 		}
 	}
 
-	private static List<String> readFile(String fileName) throws IOException {
-		Path path = Paths.get(fileName);
-		return Files.readAllLines(path, ENCODING);
+	// build a maze from its lines, top row first, as in a .maz file
+	public static Maze fromLines(List<String> lines) {
+		Maze m = new Maze();
+		m.height = lines.size();
+		m.width = lines.isEmpty() ? 0 : lines.get(0).length();
+		m.allocate();
+
+		int y = 0;
+		for (String line : lines) {
+			for (int x = 0; x < line.length() && x < m.width; x++) {
+				// (0, 0) should be bottom left, so flip y as
+				//  we read from file into array:
+				m.set(x, m.height - y - 1, line.charAt(x));
+			}
+			y++;
+		}
+		m.buildIndex();
+
+		return m;
+	}
+
+	// every location starts as a wall, so short lines are padded with walls
+	private void allocate() {
+		int size = width * height;
+		colors = new byte[size];
+		walls = new long[(size + 63) / 64];
+		for (int i = 0; i < walls.length; i++)
+			walls[i] = -1L;
+	}
+
+	private void buildIndex() {
+		int size = width * height;
+		wordRank = new int[walls.length + 1];
+		for (int w = 0; w < walls.length; w++) {
+			long legal = ~walls[w];
+			// bits past the last location are not states
+			if (w == walls.length - 1 && size % 64 != 0)
+				legal &= (1L << size) - 1;
+			wordRank[w + 1] = wordRank[w] + Long.bitCount(legal);
+		}
+
+		stateCell = new int[wordRank[walls.length]];
+		rowState = new int[height + 1];
+		int s = 0;
+		for (int y = 0; y < height; y++) {
+			rowState[y] = s;
+			for (int x = 0; x < width; x++)
+				if (isLegal(x, y))
+					stateCell[s++] = y * width + x;
+		}
+		rowState[height] = s;
+	}
+
+	private void set(int x, int y, char c) {
+		int i = y * width + x;
+		if (c == '#')
+			walls[i >>> 6] |= 1L << i;
+		else
+			walls[i >>> 6] &= ~(1L << i);
+
+		switch (c) {
+		case 'r': colors[i] = 1; break;
+		case 'g': colors[i] = 2; break;
+		case 'b': colors[i] = 3; break;
+		case 'y': colors[i] = 4; break;
+		default: colors[i] = 0; break;
+		}
+	}
+
+	// receives the bytes of a .maz file one at a time
+	private interface ByteScanner {
+		void next(byte b);
+		void end();
+	}
+
+	// feed every byte of the file to scanner, mapping CHUNK bytes at a time
+	private static void scan(FileChannel channel, long size, ByteScanner scanner) throws IOException {
+		for (long pos = 0; pos < size; pos += CHUNK) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(CHUNK, size - pos));
+			while (buffer.hasRemaining())
+				scanner.next(buffer.get());
+		}
+		scanner.end();
+	}
+
+	// counts the lines and the width (of the first line)
+	private static class LineScanner implements ByteScanner {
+		int lines = 0;
+		int width = -1;
+		int column = 0;
+
+		public void next(byte b) {
+			if (b == '\n') {
+				if (width < 0)
+					width = column;
+				lines++;
+				column = 0;
+			}
+			else if (b != '\r')
+				column++;
+		}
+
+		public void end() {
+			// last line without a newline
+			if (column > 0) {
+				if (width < 0)
+					width = column;
+				lines++;
+			}
+			if (width < 0)
+				width = 0;
+		}
+	}
+
+	// writes each character into the packed form
+	private static class CellScanner implements ByteScanner {
+		Maze m;
+		int line = 0;
+		int column = 0;
+
+		CellScanner(Maze m) {
+			this.m = m;
+		}
+
+		public void next(byte b) {
+			if (b == '\n') {
+				line++;
+				column = 0;
+			}
+			else if (b != '\r') {
+				if (column < m.width)
+					m.set(column, m.height - line - 1, (char) b);
+				column++;
+			}
+		}
+
+		public void end() {
+		}
 	}
 
 	public char getChar(int x, int y) {
-		return grid[y][x];
+		int i = y * width + x;
+		if ((walls[i >>> 6] & (1L << i)) != 0)
+			return '#';
+		switch (colors[i]) {
+		case 1: return 'r';
+		case 2: return 'g';
+		case 3: return 'b';
+		case 4: return 'y';
+		default: return '.';
+		}
 	}
-	
+
 	// if the location x, y on the map, and also a legal floor tile (not a wall)
 	public boolean isLegal(int x, int y) {
 		// on the map
 		if(x >= 0 && x < width && y >= 0 && y < height) {
 			// and it's a floor tile, not a wall tile:
-			return getChar(x, y) != '#';
+			int i = y * width + x;
+			return (walls[i >>> 6] & (1L << i)) == 0;
 		}
 		return false;
 	}
-	
+
 	// return the color
 	// r:1 g:2 b:3 y:4 #:0 illegal:0
 	public int getColor(int x, int y) {
 		if(x >= 0 && x < width && y >= 0 && y < height) {
-			// and it's a floor tile, not a wall tile:
-			switch (getChar(x, y)) {
-			case 'r': return 1;
-			case 'g': return 2;
-			case 'b': return 3;
-			case 'y': return 4;
-			case '#': return 0;
-			default: return 0;
+			return colors[y * width + x];
+		}
+		return 0;
+	}
+
+	// number of legal locations
+	public int getNumStates() {
+		return stateCell.length;
+	}
+
+	// state of location x, y; -1 for walls and locations off the map
+	public int getState(int x, int y) {
+		if (!isLegal(x, y))
+			return -1;
+		int i = y * width + x;
+		// legal locations before i in the same word
+		long below = ~walls[i >>> 6] & ((1L << i) - 1);
+		return wordRank[i >>> 6] + Long.bitCount(below);
+	}
+
+	public int getStateX(int s) {
+		return stateCell[s] % width;
+	}
+
+	public int getStateY(int s) {
+		return stateCell[s] / width;
+	}
+
+	// color of the location of state s
+	public int getStateColor(int s) {
+		return colors[stateCell[s]];
+	}
+
+	// first state of each row, and the number of states at index height
+	public int[] getRowStates() {
+		return rowState.clone();
+	}
+
+	// 64-bit hash of the size, walls and colors: mazes with the same map have the same hash
+	public long getContentHash() {
+		if (contentHash == 0) {
+			long h = mix(width, height);
+			for (long w: walls)
+				h = mix(h, w);
+			for (int i = 0; i < colors.length; i += 8) {
+				long packed = 0;
+				for (int j = i; j < i + 8 && j < colors.length; j++)
+					packed = packed << 8 | colors[j];
+				h = mix(h, packed);
 			}
+			contentHash = h == 0 ? 1 : h;
 		}
-		return 0;		
+		return contentHash;
+	}
+
+	// same size, walls and colors as other
+	public boolean sameContent(Maze other) {
+		if (other == this)
+			return true;
+		return width == other.width && height == other.height
+				&& getContentHash() == other.getContentHash()
+				&& Arrays.equals(walls, other.walls) && Arrays.equals(colors, other.colors);
+	}
+
+	private static long mix(long h, long v) {
+		h = (h ^ v) * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 29);
 	}
-	
-	
+
+	// nanoseconds spent loading the file, 0 if not read from a file
+	public long getLoadNanos() {
+		return loadNanos;
+	}
+
+	// bytes held by the packed map
+	public long getFootprintBytes() {
+		return colors.length + 8L * walls.length
+				+ 4L * (stateCell.length + rowState.length + wordRank.length);
+	}
+
 	public String toString() {
-		String s = "";
+		StringBuilder s = new StringBuilder((width + 1) * height);
 		for (int y = 0; y < height; y++) {
 			for (int x = 0; x < width; x++) {
-				s += grid[y][x];
+				s.append(getChar(x, y));
 			}
-			s += "\n";
+			s.append("\n");
 		}
-		return s;
+		return s.toString();
 	}
 
 	public static void main(String args[]) {
-		Maze m = Maze.readFromFile("simple.maz");
+		Maze m = Maze.readFromFile(args.length > 0 ? args[0] : "simple.maz");
 		System.out.println(m);
+		System.out.println(m.width + "x" + m.height + " loaded in " + m.getLoadNanos() / 1e6 + " ms, "
+				+ m.getFootprintBytes() + " bytes");
 	}
 
 }
@@ -0,0 +1,178 @@
+
+import java.lang.management.ManagementFactory;
+
+
+// benchmarks of the inference over generated mazes
+// for every maze size and evidence length, each case is run a few times to warm up,
+// 		then measured; time and allocated bytes are reported per evidence step.
+// allocation is counted on the calling thread only, so run with parallelism 1 for it.
+// a second table compares the particle filter with exact filtering.
+//
+// usage: java MazeBenchmark [sizes] [lengths] [wallDensity] [parallelism]
+// 		e.g. java MazeBenchmark 50,100,200 100,1000 0.3 1
+public class MazeBenchmark {
+
+	private static final int WARMUP = 3;
+	private static final int MEASURE = 5;
+
+	// the particle filter table compiles the same mazes again
+	private static ModelRegistry models = new ModelRegistry(256L << 20);
+
+	// one benchmarked call
+	interface Case {
+		void run(BlindRobotMazeProblem problem, int[] colors);
+	}
+
+	private static String[] names = {"getProbDistr", "Filtering", "FilterSession", "getViterbi", "getPath_Viterbi"};
+
+	private static Case[] cases = {
+		new Case() {
+			public void run(BlindRobotMazeProblem problem, int[] colors) {
+				problem.getProbDistr(colors);
+			}
+		},
+		new Case() {
+			public void run(BlindRobotMazeProblem problem, int[] colors) {
+				problem.getFilteredDistr(colors);
+			}
+		},
+		new Case() {
+			public void run(BlindRobotMazeProblem problem, int[] colors) {
+				FilterSession session = problem.newFilterSession();
+				for (int color: colors)
+					session.update(color);
+			}
+		},
+		new Case() {
+			public void run(BlindRobotMazeProblem problem, int[] colors) {
+				problem.getViterbi(colors, null).getPath();
+			}
+		},
+		// the legacy call, building the tied paths (up to its bounds)
+		new Case() {
+			public void run(BlindRobotMazeProblem problem, int[] colors) {
+				problem.getPath_Viterbi(colors, null);
+			}
+		},
+	};
+
+	public static void main(String[] args) {
+		int[] sizes = args.length > 0 ? parse(args[0]) : new int[]{50, 100, 200};
+		int[] lengths = args.length > 1 ? parse(args[1]) : new int[]{100, 1000};
+		double wallDensity = args.length > 2 ? Double.parseDouble(args[2]) : 0.3;
+		int parallelism = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+		System.out.println(String.format("%-16s %6s %7s %14s %14s", "case", "size", "steps", "ns/step", "bytes/step"));
+		for (int size: sizes) {
+			Maze maze = MazeGenerator.generate(size, size, wallDensity, size);
+			BlindRobotMazeProblem problem = new BlindRobotMazeProblem(maze, new SimpleSensorModel(), 0, models);
+			problem.setParallelism(parallelism);
+			if (size == sizes[0])
+				System.out.println("kernel: " + problem.getTransitionModel().getKernelName());
+
+			for (int length: lengths) {
+				int[] colors = MazeGenerator.evidence(maze, length, length);
+				for (int i = 0; i < cases.length; i++) {
+					double[] result = measure(cases[i], problem, colors);
+					System.out.println(String.format("%-16s %6d %7d %14.0f %14.0f",
+							names[i], size, length, result[0], result[1]));
+				}
+			}
+		}
+
+		compareParticleFilter(sizes, lengths, wallDensity, parallelism);
+
+		System.out.println();
+		System.out.println("model registry: " + models);
+	}
+
+	private static int[] numParticles = {1000, 10000, 100000};
+
+	// particle filter against exact filtering on the same inputs:
+	// 		time per step, and the total variation distance to the exact belief
+	// 		(mean over the steps, and at the last step)
+	static void compareParticleFilter(int[] sizes, int[] lengths, double wallDensity, int parallelism) {
+		System.out.println();
+		System.out.println(String.format("%-16s %6s %7s %14s %10s %10s", "filter", "size", "steps", "ns/step", "meanTV", "lastTV"));
+		for (int size: sizes) {
+			Maze maze = MazeGenerator.generate(size, size, wallDensity, size);
+			BlindRobotMazeProblem problem = new BlindRobotMazeProblem(maze, new SimpleSensorModel(), 0, models);
+			problem.setParallelism(parallelism);
+
+			for (int length: lengths) {
+				int[] colors = MazeGenerator.evidence(maze, length, length);
+
+				// exact beliefs, kept to measure the error of the particle filters
+				double[][] exact = new double[length][];
+				FilterSession session = problem.newFilterSession();
+				long start = System.nanoTime();
+				for (int t = 0; t < length; t++)
+					exact[t] = session.update(colors[t]).clone();
+				long nanos = System.nanoTime() - start;
+				System.out.println(String.format("%-16s %6d %7d %14.0f %10s %10s",
+						"exact", size, length, (double) nanos / length, "-", "-"));
+
+				for (int n: numParticles) {
+					ParticleFilter pf = problem.newParticleFilter(n, length);
+					double tv = 0;
+					double lastTV = 0;
+					nanos = 0;
+					for (int t = 0; t < length; t++) {
+						start = System.nanoTime();
+						pf.update(colors[t]);
+						nanos += System.nanoTime() - start;
+
+						lastTV = totalVariation(exact[t], pf.getBelief());
+						tv += lastTV;
+					}
+					System.out.println(String.format("%-16s %6d %7d %14.0f %10.4f %10.4f",
+							"particles " + n, size, length, (double) nanos / length, tv / length, lastTV));
+				}
+			}
+		}
+	}
+
+	// 1/2 sum |p - q|
+	static double totalVariation(double[] p, double[] q) {
+		double sum = 0;
+		for (int c = 0; c < p.length; c++)
+			sum += Math.abs(p[c] - q[c]);
+		return sum / 2;
+	}
+
+	// {ns per step, bytes per step}, the mean of the measured runs
+	static double[] measure(Case c, BlindRobotMazeProblem problem, int[] colors) {
+		for (int i = 0; i < WARMUP; i++)
+			c.run(problem, colors);
+
+		long nanos = 0;
+		long bytes = 0;
+		for (int i = 0; i < MEASURE; i++) {
+			long startBytes = allocatedBytes();
+			long start = System.nanoTime();
+			c.run(problem, colors);
+			nanos += System.nanoTime() - start;
+			bytes += allocatedBytes() - startBytes;
+		}
+
+		double steps = (double) MEASURE * Math.max(1, colors.length);
+		return new double[]{nanos / steps, bytes / steps};
+	}
+
+	// bytes allocated so far by this thread, 0 if the JVM cannot tell
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+		return 0;
+	}
+
+	static int[] parse(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			values[i] = Integer.parseInt(parts[i].trim());
+		return values;
+	}
+
+}
@@ -0,0 +1,101 @@
+
+import java.util.ArrayList;
+import java.util.Random;
+
+
+// deterministic mazes and evidence sequences for benchmarks
+// the same arguments and seed always give the same maze and colors
+public class MazeGenerator {
+
+	private static final char[] COLOR_CHARS = {'r', 'g', 'b', 'y'};
+
+	// width x height maze; each location is a wall with probability wallDensity,
+	// 		else a color r, g, b, y drawn with the given weights
+	public static Maze generate(int width, int height, double wallDensity, double[] colorWeights, long seed) {
+		Random rand = new Random(seed);
+
+		double total = 0;
+		for (double w: colorWeights)
+			total += w;
+
+		ArrayList<String> lines = new ArrayList<String>(height);
+		char[] line = new char[width];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (rand.nextDouble() < wallDensity) {
+					line[x] = '#';
+					continue;
+				}
+				double r = rand.nextDouble() * total;
+				int color = 0;
+				while (color < colorWeights.length - 1 && r >= colorWeights[color]) {
+					r -= colorWeights[color];
+					color++;
+				}
+				line[x] = COLOR_CHARS[color];
+			}
+			lines.add(new String(line));
+		}
+
+		Maze m = Maze.fromLines(lines);
+
+		// at least one floor tile, so that P(L0) exists
+		boolean legal = false;
+		for (int y = 0; y < height && !legal; y++)
+			for (int x = 0; x < width && !legal; x++)
+				legal = m.isLegal(x, y);
+		if (!legal) {
+			lines.set(0, 'r' + lines.get(0).substring(1));
+			m = Maze.fromLines(lines);
+		}
+		return m;
+	}
+
+	// equal color weights
+	public static Maze generate(int width, int height, double wallDensity, long seed) {
+		return generate(width, height, wallDensity, new double[]{1, 1, 1, 1}, seed);
+	}
+
+	// colors read by a robot doing a random walk of the given number of steps
+	// the walk follows the motion model (a blocked move stays in place),
+	// 		the sensor reads the right color with p = 0.88, each other color with p = 0.04
+	public static int[] evidence(Maze m, int steps, long seed) {
+		return walk(m, steps, seed)[0];
+	}
+
+	// {colors, locations}: locations[0] is the start L0, and colors[t] is read after move t + 1,
+	// 		at location (locations[t + 1] % width, locations[t + 1] / width)
+	public static int[][] walk(Maze m, int steps, long seed) {
+		Random rand = new Random(seed);
+		int[][] actions = {Maze.NORTH, Maze.EAST, Maze.SOUTH, Maze.WEST};
+
+		// start on a random floor tile
+		int x, y;
+		do {
+			x = rand.nextInt(m.width);
+			y = rand.nextInt(m.height);
+		} while (!m.isLegal(x, y));
+
+		int[] colors = new int[steps];
+		int[] locations = new int[steps + 1];
+		locations[0] = y * m.width + x;
+		for (int t = 0; t < steps; t++) {
+			int[] action = actions[rand.nextInt(actions.length)];
+			if (m.isLegal(x + action[0], y + action[1])) {
+				x += action[0];
+				y += action[1];
+			}
+
+			int color = m.getColor(x, y);
+			if (rand.nextDouble() >= 0.88) {
+				// one of the 3 other colors
+				int other = 1 + rand.nextInt(COLOR_CHARS.length - 1);
+				color = other >= color ? other + 1 : other;
+			}
+			colors[t] = color;
+			locations[t + 1] = y * m.width + x;
+		}
+		return new int[][]{colors, locations};
+	}
+
+}
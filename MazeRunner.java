@@ -0,0 +1,251 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+// headless runner: reads a maze and a file of evidence sequences, runs filtering,
+// 		smoothing or Viterbi on each sequence and streams the results to a file.
+// evidence file: one sequence per line, colors as r g b y (or 1 2 3 4); spaces and
+// 		commas are ignored, empty lines and lines starting with # are skipped.
+// output, one line per result, tab separated:
+// 		filter, smooth: sequence  k  x,y of the most likely location  its probability
+// 			then P(Lk|...) for every state (Maze.getState order)
+// 		viterbi: sequence  log P(path, e1:t)  number of co-optimal paths  x,y ... of the first path
+// sequences are read and written as they go (at most 2 * threads in flight, output
+// 		written in whole lines every FLUSH_CHARS), so memory does not grow with the
+// 		size of the evidence file; lines of different sequences can interleave.
+//
+// usage: java MazeRunner maze.maz evidence.txt filter|smooth|viterbi output.txt [threads]
+public class MazeRunner {
+
+	// output buffered per sequence before it is written
+	static final int FLUSH_CHARS = 1 << 16;
+
+	private BlindRobotMazeProblem problem;
+	private BatchInference.Mode mode;
+	private Writer out;
+
+	// latency of each sequence, in nanoseconds
+	private long[] latency = new long[1024];
+	private int sequences;
+	private long steps;
+
+	public MazeRunner(BlindRobotMazeProblem p, BatchInference.Mode mode, Writer out) {
+		problem = p;
+		this.mode = mode;
+		this.out = out;
+	}
+
+	// run every sequence of the reader, on threads threads
+	// the first error of any sequence is thrown once the others are done
+	public void run(BufferedReader in, int threads) throws IOException, InterruptedException {
+		ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		final Semaphore inFlight = new Semaphore(2 * threads);
+		final Throwable[] error = new Throwable[1];
+
+		try {
+			String line;
+			int seq = 0;
+			while ((line = in.readLine()) != null) {
+				final int[] colors = parseColors(line);
+				if (colors == null)
+					continue;
+				final int index = seq++;
+
+				if (pool == null) {
+					runSequence(index, colors);
+					continue;
+				}
+				inFlight.acquire();
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							runSequence(index, colors);
+						} catch (Throwable e) {
+							synchronized (error) {
+								if (error[0] == null)
+									error[0] = e;
+							}
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+			}
+		} finally {
+			// also on a bad line: the pool threads would keep the JVM alive
+			if (pool != null) {
+				pool.shutdown();
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			}
+		}
+		out.flush();
+		synchronized (error) {
+			if (error[0] instanceof IOException)
+				throw (IOException) error[0];
+			if (error[0] instanceof RuntimeException)
+				throw (RuntimeException) error[0];
+			if (error[0] instanceof Error)
+				throw (Error) error[0];
+		}
+	}
+
+	// colors of one line of the evidence file, null for empty and comment lines
+	static int[] parseColors(String line) {
+		line = line.trim();
+		if (line.isEmpty() || line.startsWith("#"))
+			return null;
+
+		int[] colors = new int[line.length()];
+		int num = 0;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			switch (c) {
+			case 'r': case '1': colors[num++] = 1; break;
+			case 'g': case '2': colors[num++] = 2; break;
+			case 'b': case '3': colors[num++] = 3; break;
+			case 'y': case '4': colors[num++] = 4; break;
+			case ' ': case '\t': case ',': break;
+			default:
+				throw new IllegalArgumentException("not a color: '" + c + "' in " + line);
+			}
+		}
+		return Arrays.copyOf(colors, num);
+	}
+
+	private void runSequence(final int seq, int[] colors) throws IOException {
+		long start = System.nanoTime();
+		final StringBuilder s = new StringBuilder();
+
+		switch (mode) {
+		case FILTER:
+			FilterSession session = problem.newFilterSession();
+			appendBelief(s, seq, 0, problem.initialDistr());
+			for (int k = 0; k < colors.length; k++)
+				appendBelief(s, seq, k + 1, session.update(colors[k]));
+			break;
+		case SMOOTH:
+			final IOException[] error = new IOException[1];
+			problem.smooth(colors, new BeliefConsumer() {
+				public void accept(int k, double[] belief) {
+					try {
+						if (error[0] == null)
+							appendBelief(s, seq, k, belief);
+					} catch (IOException e) {
+						error[0] = e;
+					}
+				}
+			});
+			if (error[0] != null)
+				throw error[0];
+			break;
+		case VITERBI:
+			ViterbiDecoder.Result result = problem.getViterbi(colors, null);
+			s.append(seq).append('\t').append(result.getLogProb()).append('\t').append(result.getPathCount());
+			ArrayList<int[]> path = result.getPath();
+			if (path != null)
+				for (int[] loc: path)
+					s.append('\t').append(loc[0]).append(',').append(loc[1]);
+			s.append('\n');
+			break;
+		}
+
+		write(s);
+		record(System.nanoTime() - start, colors.length);
+	}
+
+	private void write(StringBuilder s) throws IOException {
+		synchronized (out) {
+			out.append(s);
+		}
+		s.setLength(0);
+	}
+
+	private void appendBelief(StringBuilder s, int seq, int k, double[] belief) throws IOException {
+		int best = 0;
+		for (int c = 1; c < belief.length; c++)
+			if (belief[c] > belief[best])
+				best = c;
+
+		TransitionModel transModel = problem.getTransitionModel();
+		s.append(seq).append('\t').append(k).append('\t')
+			.append(transModel.getX(best)).append(',').append(transModel.getY(best)).append('\t')
+			.append(belief[best]).append('\t');
+		for (int c = 0; c < belief.length; c++) {
+			if (c > 0)
+				s.append(' ');
+			s.append((float) belief[c]);
+		}
+		s.append('\n');
+		if (s.length() >= FLUSH_CHARS)
+			write(s);
+	}
+
+	private synchronized void record(long nanos, int length) {
+		if (sequences == latency.length)
+			latency = Arrays.copyOf(latency, 2 * sequences);
+		latency[sequences++] = nanos;
+		steps += length;
+	}
+
+	public synchronized int getSequences() {
+		return sequences;
+	}
+
+	public synchronized long getSteps() {
+		return steps;
+	}
+
+	// p-th percentile (0 < p <= 100) of the per-sequence latency, in nanoseconds
+	public synchronized long getLatencyPercentile(double p) {
+		if (sequences == 0)
+			return 0;
+		long[] sorted = Arrays.copyOf(latency, sequences);
+		Arrays.sort(sorted);
+		int i = (int) Math.ceil(p / 100 * sequences) - 1;
+		return sorted[Math.max(0, Math.min(sequences - 1, i))];
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 4) {
+			System.err.println("usage: java MazeRunner maze.maz evidence.txt filter|smooth|viterbi output.txt [threads]");
+			System.exit(2);
+		}
+
+		Maze maze = Maze.readFromFile(args[0]);
+		if (maze == null) {
+			System.err.println("cannot read maze " + args[0]);
+			System.exit(1);
+		}
+		BatchInference.Mode mode = BatchInference.Mode.valueOf(args[2].toUpperCase());
+		int threads = args.length > 4 ? Math.max(1, Integer.parseInt(args[4])) : 1;
+
+		BlindRobotMazeProblem problem = new BlindRobotMazeProblem(maze);
+		long start = System.nanoTime();
+		MazeRunner runner;
+		try (BufferedReader in = Files.newBufferedReader(Paths.get(args[1]), StandardCharsets.UTF_8);
+				Writer out = Files.newBufferedWriter(Paths.get(args[3]), StandardCharsets.UTF_8)) {
+			runner = new MazeRunner(problem, mode, out);
+			runner.run(in, threads);
+		}
+		long nanos = System.nanoTime() - start;
+
+		System.out.println(maze.width + "x" + maze.height + ", " + maze.getNumStates() + " states, "
+				+ mode.name().toLowerCase() + ", " + threads + " threads");
+		System.out.println(String.format("%d sequences, %d steps in %.3f s (%.1f sequences/s)",
+				runner.getSequences(), runner.getSteps(), nanos / 1e9, runner.getSequences() * 1e9 / Math.max(1, nanos)));
+		System.out.println(String.format("latency ms: p50 %.3f  p90 %.3f  p99 %.3f  max %.3f",
+				runner.getLatencyPercentile(50) / 1e6, runner.getLatencyPercentile(90) / 1e6,
+				runner.getLatencyPercentile(99) / 1e6, runner.getLatencyPercentile(100) / 1e6));
+	}
+
+}
@@ -0,0 +1,226 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+// compiled transition models shared by the problems of the same maze
+// a model is keyed by the maze content (Maze.getContentHash), the actions and the slip,
+// 		so a problem of a maze that was compiled before, even from another Maze object,
+// 		reuses that model instead of building it again. the entry keeps the maze, actions
+// 		and slip it was built for: a hash collision is a miss, built without being cached.
+// a model is built on first use, by the thread that asked for it; the threads asking
+// 		for the same model meanwhile wait for that build instead of starting their own.
+// built models are kept in LRU order; when they hold more than maxBytes the least
+// 		recently used ones are dropped (problems already using a dropped model keep it).
+// the map is only touched under the registry lock, the builds run outside it.
+public class ModelRegistry {
+
+	private static class Entry {
+		FutureTask<TransitionModel> task;
+		// 0 while building
+		long bytes;
+
+		// what the model was built for
+		Maze maze;
+		int[][] actions;
+		double slip;
+
+		Entry(Maze maze, int[][] actions, double slip) {
+			this.maze = maze;
+			this.actions = new int[actions.length][];
+			for (int i = 0; i < actions.length; i++)
+				this.actions[i] = actions[i].clone();
+			this.slip = slip;
+			task = new FutureTask<TransitionModel>(() -> new TransitionModel(maze, this.actions, slip));
+		}
+
+		boolean matches(Maze maze, int[][] actions, double slip) {
+			return Double.compare(this.slip, slip) == 0 && Arrays.deepEquals(this.actions, actions)
+					&& this.maze.sameContent(maze);
+		}
+	}
+
+	private long maxBytes;
+	private long bytes;
+
+	// access order: least recently used first
+	private LinkedHashMap<Long, Entry> models = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+	private long hits;
+	private long misses;
+	// hits that waited for a build in progress
+	private long waits;
+	private long evictions;
+	private long builds;
+	private long buildNanos;
+	private long maxBuildNanos;
+
+	public ModelRegistry(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	// the model of maze, built if needed; may block while another thread builds it
+	public TransitionModel get(final Maze maze, final int[][] actions, final double slip) {
+		long key = key(maze, actions, slip);
+		Entry entry;
+		boolean build = false;
+		synchronized (this) {
+			entry = models.get(key);
+			if (entry == null || !entry.matches(maze, actions, slip)) {
+				// a collision leaves the cached model in place
+				if (entry == null) {
+					entry = new Entry(maze, actions, slip);
+					models.put(key, entry);
+				}
+				else
+					entry = new Entry(maze, actions, slip);
+				misses++;
+				build = true;
+			}
+			else {
+				hits++;
+				if (!entry.task.isDone())
+					waits++;
+			}
+		}
+		if (build)
+			build(key, entry);
+		return result(entry.task);
+	}
+
+	private void build(long key, Entry entry) {
+		long start = System.nanoTime();
+		entry.task.run();
+		long nanos = System.nanoTime() - start;
+		if (InferenceMetrics.isEnabled())
+			InferenceMetrics.get("registry.build.nanos").record(nanos);
+
+		TransitionModel model = null;
+		try {
+			model = entry.task.get();
+		} catch (ExecutionException | InterruptedException e) {
+			// the caller gets the error from result; a later get builds again
+		}
+		synchronized (this) {
+			builds++;
+			buildNanos += nanos;
+			maxBuildNanos = Math.max(maxBuildNanos, nanos);
+			if (model == null) {
+				if (models.get(key) == entry)
+					models.remove(key);
+				return;
+			}
+			// not cached: a hash collision
+			if (models.get(key) != entry)
+				return;
+			entry.bytes = model.getBytes();
+			bytes += entry.bytes;
+			evict(entry);
+		}
+	}
+
+	// drop least recently used models down to maxBytes; keep is not dropped
+	private void evict(Entry keep) {
+		Iterator<Map.Entry<Long, Entry>> it = models.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			Entry e = it.next().getValue();
+			// still building: not counted yet
+			if (e == keep || e.bytes == 0)
+				continue;
+			it.remove();
+			bytes -= e.bytes;
+			evictions++;
+		}
+	}
+
+	private static TransitionModel result(FutureTask<TransitionModel> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	static long key(Maze maze, int[][] actions, double slip) {
+		return (maze.getContentHash() * 31 + Arrays.deepHashCode(actions)) * 31 + Double.hashCode(slip);
+	}
+
+	public synchronized void clear() {
+		Iterator<Entry> it = models.values().iterator();
+		while (it.hasNext())
+			// builds in progress are still waited for
+			if (it.next().bytes > 0)
+				it.remove();
+		bytes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	// hits that waited for the build of another thread
+	public synchronized long getWaits() {
+		return waits;
+	}
+
+	public synchronized double getHitRate() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getBuilds() {
+		return builds;
+	}
+
+	// total time spent building models
+	public synchronized long getBuildNanos() {
+		return buildNanos;
+	}
+
+	public synchronized long getMeanBuildNanos() {
+		return builds == 0 ? 0 : buildNanos / builds;
+	}
+
+	public synchronized long getMaxBuildNanos() {
+		return maxBuildNanos;
+	}
+
+	// bytes held by the built models (estimated)
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	// models held, including those being built
+	public synchronized int size() {
+		return models.size();
+	}
+
+	public synchronized String toString() {
+		return String.format("%d models, %.1f MB; %d hits (%d waited), %d misses, %d evictions; build ms: mean %.3f max %.3f",
+				models.size(), bytes / 1e6, hits, waits, misses, evictions,
+				getMeanBuildNanos() / 1e6, maxBuildNanos / 1e6);
+	}
+
+}
@@ -0,0 +1,148 @@
+
+import java.util.SplittableRandom;
+
+
+// sampled approximation of Filtering P(Lt|c1:t) for mazes too large for exact inference
+// each particle is a state of the maze (int) with a weight (double):
+// 		1. move: each particle takes a successor drawn from the transition model
+// 		   (random action, staying in place when the move is blocked by a wall)
+// 		2. weight: w = w * P(ct|particle) from the sensor likelihood vectors
+// 		3. resample (systematic) when the effective sample size drops below
+// 		   resampleRatio * number of particles
+// the same seed always gives the same particles.
+public class ParticleFilter {
+
+	private BlindRobotMazeProblem problem;
+	private TransitionModel transModel;
+
+	private int num;
+	private double resampleRatio;
+	private SplittableRandom rand;
+
+	// particle i is at state particles[i] with weight weights[i] (weights sum to 1)
+	private int[] particles;
+	private double[] weights;
+	// scratch for resampling
+	private int[] resampled;
+
+	private int steps;
+	private int resamples;
+
+	public ParticleFilter(BlindRobotMazeProblem p, int numParticles, long seed) {
+		this(p, numParticles, 0.5, seed);
+	}
+
+	public ParticleFilter(BlindRobotMazeProblem p, int numParticles, double resampleRatio, long seed) {
+		problem = p;
+		transModel = p.getTransitionModel();
+		num = Math.max(1, numParticles);
+		this.resampleRatio = resampleRatio;
+		rand = new SplittableRandom(seed);
+
+		particles = new int[num];
+		weights = new double[num];
+		resampled = new int[num];
+
+		// P(L0): uniform over the states
+		for (int i = 0; i < num; i++) {
+			particles[i] = rand.nextInt(transModel.size);
+			weights[i] = 1.0 / num;
+		}
+	}
+
+	// take color reading ct
+	public void update(int color) {
+		double[] like = problem.likelihood(color);
+
+		double sum = 0;
+		for (int i = 0; i < num; i++) {
+			int s = move(particles[i]);
+			particles[i] = s;
+			weights[i] = weights[i] * like[s];
+			sum += weights[i];
+		}
+
+		// all particles impossible: start again from P(L0) weighted by the reading
+		if (sum == 0) {
+			for (int i = 0; i < num; i++) {
+				particles[i] = rand.nextInt(transModel.size);
+				weights[i] = like[particles[i]];
+				sum += weights[i];
+			}
+		}
+
+		// effective sample size 1 / sum(w^2) of the normalized weights
+		double sumSquares = 0;
+		for (int i = 0; i < num; i++) {
+			weights[i] = weights[i] / sum;
+			sumSquares += weights[i] * weights[i];
+		}
+		if (1.0 / sumSquares < resampleRatio * num)
+			resample();
+
+		steps++;
+	}
+
+	// successor of state s drawn from P(Lt|Lt-1 = s)
+	private int move(int s) {
+		double u = rand.nextDouble();
+		int last = transModel.succStart[s + 1] - 1;
+		for (int k = transModel.succStart[s]; k < last; k++) {
+			u -= transModel.succProb[k];
+			if (u < 0)
+				return transModel.succTo[k];
+		}
+		return transModel.succTo[last];
+	}
+
+	// systematic resampling: one random offset, num evenly spaced pointers
+	// 		into the cumulative weights
+	private void resample() {
+		double step = 1.0 / num;
+		double u = rand.nextDouble() * step;
+		double cumulative = weights[0];
+		int j = 0;
+		for (int i = 0; i < num; i++) {
+			while (u > cumulative && j < num - 1) {
+				j++;
+				cumulative += weights[j];
+			}
+			resampled[i] = particles[j];
+			u += step;
+		}
+
+		int[] tmp = particles;
+		particles = resampled;
+		resampled = tmp;
+		for (int i = 0; i < num; i++)
+			weights[i] = step;
+		resamples++;
+	}
+
+	// P(Lt|c1:t) estimated from the particles, indexed by state
+	public double[] getBelief() {
+		double[] belief = new double[transModel.size];
+		for (int i = 0; i < num; i++)
+			belief[particles[i]] += weights[i];
+		return belief;
+	}
+
+	// the belief as a [height][width] grid, for MazeView.setTexts
+	public double[][] getBeliefGrid() {
+		return problem.toGrid(getBelief());
+	}
+
+	public int getNumParticles() {
+		return num;
+	}
+
+	public int getSteps() {
+		return steps;
+	}
+
+	// number of steps that resampled
+	public int getResamples() {
+		return resamples;
+	}
+
+}
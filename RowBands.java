@@ -0,0 +1,123 @@
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+// the rows of a maze split into bands of about BAND_CELLS locations
+// the per-step loops of the inference run band by band, on a ForkJoinPool when
+// 		parallelism > 1.
+// the bands only depend on the maze, and partial results are combined in band
+// 		order, so the results are the same bit for bit for every parallelism.
+// all bands of the same parallelism share one pool, so replacing the bands of a
+// 		problem (setParallelism) starts no new threads, and calls still running on
+// 		the old bands are not cut off.
+public class RowBands {
+
+	public static final int BAND_CELLS = 4096;
+
+	// loop over the locations lo ... hi-1, returns a partial result (sum or max)
+	public interface Task {
+		double run(int lo, int hi);
+	}
+
+	// locations of band b: start[b] ... start[b+1]-1
+	private int[] start;
+
+	private int parallelism;
+	private ForkJoinPool pool;
+
+	// shared pools, by parallelism; their worker threads are daemons and end when idle
+	private static final ConcurrentHashMap<Integer, ForkJoinPool> pools = new ConcurrentHashMap<Integer, ForkJoinPool>();
+
+	// rowStart[y]: first location of row y, rowStart[height]: number of locations
+	public RowBands(int[] rowStart, int parallelism) {
+		int height = rowStart.length - 1;
+
+		int[] tmp = new int[height + 1];
+		int num = 0;
+		tmp[num++] = 0;
+		for (int y = 1; y < height; y++)
+			if (rowStart[y] - tmp[num - 1] >= BAND_CELLS)
+				tmp[num++] = rowStart[y];
+		start = new int[num + 1];
+		System.arraycopy(tmp, 0, start, 0, num);
+		start[num] = rowStart[height];
+
+		this.parallelism = Math.max(1, parallelism);
+		if (this.parallelism > 1 && num > 1)
+			pool = pools.computeIfAbsent(this.parallelism, ForkJoinPool::new);
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public int getNumBands() {
+		return start.length - 1;
+	}
+
+	// run task on every band
+	public void forEach(Task task) {
+		run(task);
+	}
+
+	// sum of the partial results, added in band order
+	public double sum(Task task) {
+		double[] partial = run(task);
+		double sum = 0;
+		for (double p: partial)
+			sum += p;
+		return sum;
+	}
+
+	// max of the partial results
+	public double max(Task task) {
+		double[] partial = run(task);
+		double max = Double.NEGATIVE_INFINITY;
+		for (double p: partial)
+			if (p > max)
+				max = p;
+		return max;
+	}
+
+	private double[] run(Task task) {
+		double[] partial = new double[start.length - 1];
+		if (pool == null) {
+			for (int b = 0; b < partial.length; b++)
+				partial[b] = task.run(start[b], start[b + 1]);
+		}
+		else
+			pool.invoke(new BandAction(task, partial, 0, partial.length));
+		return partial;
+	}
+
+	// splits the bands in halves until one band is left
+	private class BandAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		// never serialized: the action only lives for one invoke
+		private transient Task task;
+		private transient double[] partial;
+		private transient int lo;
+		private transient int hi;
+
+		BandAction(Task task, double[] partial, int lo, int hi) {
+			this.task = task;
+			this.partial = partial;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo == 1) {
+				partial[lo] = task.run(start[lo], start[lo + 1]);
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			invokeAll(new BandAction(task, partial, lo, mid), new BandAction(task, partial, mid, hi));
+		}
+	}
+
+}
@@ -0,0 +1,11 @@
+
+
+// sensor model P(C==s|L(x,y)): probability of reading color s at location (x,y)
+// colors are those of Maze.getColor, r:1 g:2 b:3 y:4
+// BlindRobotMazeProblem compiles it into one likelihood vector per color,
+// 		so it is only called when the problem is built.
+public interface SensorModel {
+
+	double probability(Maze maze, int x, int y, int s);
+
+}
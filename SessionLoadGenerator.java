@@ -0,0 +1,153 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// load generator for SessionServer: many simulated robots at once, one virtual thread
+// 		and one connection each, sending one color reading every intervalMillis
+// 		(the evidence of a random walk in the maze) and timing each reply.
+// the robots start spread over the first interval, so the load is even.
+// reports the latency percentiles of the requests over all robots.
+//
+// usage: java SessionLoadGenerator maze.maz host port sessions steps [intervalMillis]
+public class SessionLoadGenerator {
+
+	private Maze maze;
+	private String host;
+	private int port;
+
+	private LongAdder failed = new LongAdder();
+	private LongAdder busy = new LongAdder();
+
+	public SessionLoadGenerator(Maze maze, String host, int port) {
+		this.maze = maze;
+		this.host = host;
+		this.port = port;
+	}
+
+	// run all sessions; returns the latency of every request, in nanoseconds, sorted
+	public long[] run(int sessions, final int steps, final long intervalMillis) throws InterruptedException {
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>(sessions);
+		final Random random = new Random(1);
+		try (ExecutorService robots = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < sessions; i++) {
+				final int seed = i;
+				final long delay = intervalMillis > 0 ? (long) (random.nextDouble() * intervalMillis) : 0;
+				results.add(robots.submit(() -> robot(seed, steps, delay, intervalMillis)));
+			}
+		}
+
+		long[] all = new long[sessions * steps];
+		int num = 0;
+		for (Future<long[]> f: results) {
+			long[] latency;
+			try {
+				latency = f.get();
+			} catch (ExecutionException e) {
+				failed.increment();
+				continue;
+			}
+			System.arraycopy(latency, 0, all, num, latency.length);
+			num += latency.length;
+		}
+		all = Arrays.copyOf(all, num);
+		Arrays.sort(all);
+		return all;
+	}
+
+	// one robot; returns the latency of its requests
+	private long[] robot(int seed, int steps, long delay, long intervalMillis) throws InterruptedException {
+		int[] colors = MazeGenerator.evidence(maze, steps, seed);
+		long[] latency = new long[steps];
+		int num = 0;
+		Thread.sleep(delay);
+		try (Socket socket = new Socket(host, port)) {
+			socket.setTcpNoDelay(true);
+			OutputStream out = socket.getOutputStream();
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+			long next = System.nanoTime();
+			for (int color: colors) {
+				long start = System.nanoTime();
+				out.write(new byte[]{(byte) ('0' + color), '\n'});
+				out.flush();
+				String reply = in.readLine();
+				if (reply == null || !reply.startsWith("ok")) {
+					if ("error busy".equals(reply))
+						busy.increment();
+					else
+						failed.increment();
+					break;
+				}
+				latency[num++] = System.nanoTime() - start;
+
+				// readings at a fixed rate: the wait is shorter after a slow reply
+				next += intervalMillis * 1000000;
+				long wait = next - System.nanoTime();
+				if (wait > 0)
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			}
+			out.write("quit\n".getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+		} catch (IOException e) {
+			failed.increment();
+		}
+		return Arrays.copyOf(latency, num);
+	}
+
+	// sessions that ended with an error or a lost connection
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	// sessions the server turned away
+	public long getBusy() {
+		return busy.sum();
+	}
+
+	static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length < 5) {
+			System.err.println("usage: java SessionLoadGenerator maze.maz host port sessions steps [intervalMillis]");
+			System.exit(2);
+		}
+		Maze maze = Maze.readFromFile(args[0]);
+		if (maze == null) {
+			System.err.println("cannot read maze " + args[0]);
+			System.exit(1);
+		}
+		int sessions = Integer.parseInt(args[3]);
+		int steps = Integer.parseInt(args[4]);
+		long interval = args.length > 5 ? Long.parseLong(args[5]) : 1000;
+
+		SessionLoadGenerator generator = new SessionLoadGenerator(maze, args[1], Integer.parseInt(args[2]));
+		long start = System.nanoTime();
+		long[] latency = generator.run(sessions, steps, interval);
+		long nanos = System.nanoTime() - start;
+
+		System.out.println(String.format("%d sessions x %d steps every %d ms: %d requests in %.3f s (%.0f requests/s), %d failed, %d busy",
+				sessions, steps, interval, latency.length, nanos / 1e9, latency.length * 1e9 / Math.max(1, nanos),
+				generator.getFailed(), generator.getBusy()));
+		System.out.println(String.format("latency ms: p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+				percentile(latency, 50) / 1e6, percentile(latency, 90) / 1e6, percentile(latency, 99) / 1e6,
+				percentile(latency, 99.9) / 1e6, percentile(latency, 100) / 1e6));
+	}
+
+}
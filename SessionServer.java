@@ -0,0 +1,408 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// TCP server tracking live robots: one connection is one robot session, served by
+// 		its own virtual thread, filtering its color readings over the shared model.
+// line protocol (one reply line per request line):
+// 		colors, e.g. "r", "rgby", "1 2"	-> "ok step x y p candidates" after reading them all:
+// 											the most likely location, its probability and
+// 											the number of locations within 1/100 of it
+// 		top [k]							-> "top x:y:p ..." the k most likely locations
+// 		entropy							-> "entropy h" of the belief, in nats
+// 		reset							-> back to P(L0), same reply as colors
+// 		quit							-> "bye"
+// 		anything else					-> "error message"
+// the server closes a session with "bye idle" after idleMillis without a request,
+// 		and turns new connections away with "error busy" beyond maxSessions.
+// a session only keeps its belief; a step writes into one of `workers` scratch
+// 		vectors and keeps it, handing its old belief back. when all are taken the
+// 		session waits without reading its socket, so a client sending faster than
+// 		the server filters is slowed down by TCP itself.
+// sessions that have not sent a reading share P(L0) and cost no belief.
+// needs JDK 21 (virtual threads).
+public class SessionServer implements Closeable {
+
+	public static final int DEFAULT_PORT = 7070;
+
+	// longest request line, in characters
+	static final int MAX_LINE = 4096;
+
+	// time a turned away client gets to read "error busy" and close
+	static final int REJECT_MILLIS = 2000;
+
+	// wait after a failed accept (e.g. out of file descriptors), doubled up to the max
+	static final int ACCEPT_BACKOFF_MILLIS = 10;
+	static final int ACCEPT_BACKOFF_MAX_MILLIS = 1000;
+
+	private BlindRobotMazeProblem problem;
+	private Maze maze;
+	private double[] initial;
+
+	private int maxSessions;
+	private int idleMillis;
+
+	// scratch beliefs; taking one is the permit to run a filter step
+	private ArrayBlockingQueue<double[]> scratch;
+
+	private ServerSocket server;
+	private ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor();
+	private Semaphore slots;
+	private volatile boolean closed;
+	// open session sockets, closed by close()
+	private Set<Socket> open = ConcurrentHashMap.newKeySet();
+
+	private AtomicInteger active = new AtomicInteger();
+	private LongAdder accepted = new LongAdder();
+	private LongAdder rejected = new LongAdder();
+	private LongAdder evicted = new LongAdder();
+	private LongAdder requests = new LongAdder();
+	private LongAdder readings = new LongAdder();
+
+	// workers: filter steps run at the same time (at most one per session)
+	public SessionServer(BlindRobotMazeProblem p, int maxSessions, int idleMillis, int workers) {
+		problem = p;
+		maze = p.getMaze();
+		initial = p.initialDistr();
+		this.maxSessions = maxSessions;
+		this.idleMillis = idleMillis;
+		slots = new Semaphore(maxSessions);
+		scratch = new ArrayBlockingQueue<double[]>(workers);
+		for (int i = 0; i < workers; i++)
+			scratch.add(new double[initial.length]);
+	}
+
+	// bind and accept connections on a virtual thread; port 0 for any free port
+	public void start(int port) throws IOException {
+		server = new ServerSocket();
+		server.bind(new InetSocketAddress(port), maxSessions);
+		Thread.ofVirtual().name("accept").start(this::accept);
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	private void accept() {
+		int backoff = ACCEPT_BACKOFF_MILLIS;
+		while (!closed) {
+			Socket socket;
+			try {
+				socket = server.accept();
+				backoff = ACCEPT_BACKOFF_MILLIS;
+			} catch (IOException e) {
+				if (closed)
+					return;
+				System.err.println("accept: " + e + ", retry in " + backoff + " ms");
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException i) {
+					return;
+				}
+				backoff = Math.min(2 * backoff, ACCEPT_BACKOFF_MAX_MILLIS);
+				continue;
+			}
+			if (!slots.tryAcquire()) {
+				rejected.increment();
+				sessions.execute(() -> reject(socket));
+				continue;
+			}
+			accepted.increment();
+			sessions.execute(() -> {
+				active.incrementAndGet();
+				try {
+					serve(socket);
+				} finally {
+					active.decrementAndGet();
+					slots.release();
+				}
+			});
+		}
+	}
+
+	// closing with a request still unread would reset the connection before the client
+	// 		reads the reply: half close, then drain until the client closes too
+	private static void reject(Socket socket) {
+		try (Socket s = socket) {
+			s.getOutputStream().write("error busy\n".getBytes(StandardCharsets.US_ASCII));
+			s.shutdownOutput();
+			s.setSoTimeout(REJECT_MILLIS);
+			byte[] buffer = new byte[256];
+			while (s.getInputStream().read(buffer) >= 0)
+				;
+		} catch (IOException e) {
+			// the client is gone already, or too slow to close
+		}
+	}
+
+	// one robot session, until quit, idle, error or close
+	private void serve(Socket socket) {
+		Session session = new Session();
+		open.add(socket);
+		try (Socket s = socket) {
+			// close() may have run before the socket was added
+			if (closed)
+				return;
+			s.setSoTimeout(idleMillis);
+			s.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.US_ASCII));
+			StringBuilder buffer = new StringBuilder();
+			while (!closed) {
+				String line;
+				try {
+					line = readLine(in, buffer);
+				} catch (SocketTimeoutException e) {
+					evicted.increment();
+					out.write("bye idle\n");
+					out.flush();
+					return;
+				}
+				if (line == null)
+					return;
+				requests.increment();
+				if (line.length() > MAX_LINE) {
+					// the rest of the line is not read: the session ends here
+					out.write("error line longer than " + MAX_LINE + "\n");
+					out.flush();
+					return;
+				}
+				String reply = session.handle(line);
+				out.write(reply);
+				out.write('\n');
+				out.flush();
+				if (reply.equals("bye"))
+					return;
+			}
+		} catch (SocketException e) {
+			// reset by the client, or closed by close()
+		} catch (IOException e) {
+			System.err.println("session: " + e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			open.remove(socket);
+		}
+	}
+
+	// next line without its terminator, null at the end of the stream; stops reading
+	// 		past MAX_LINE characters (and a '\r'), so a longer line is returned cut there
+	static String readLine(InputStream in, StringBuilder buffer) throws IOException {
+		buffer.setLength(0);
+		int b;
+		while ((b = in.read()) >= 0 && b != '\n') {
+			buffer.append((char) b);
+			if (buffer.length() > MAX_LINE + 1)
+				break;
+		}
+		if (b < 0 && buffer.length() == 0)
+			return null;
+		int end = buffer.length();
+		if (end > 0 && buffer.charAt(end - 1) == '\r')
+			end--;
+		return buffer.substring(0, end);
+	}
+
+	private class Session {
+		// P(Lt|c1:t); initial until the first reading
+		private double[] belief = initial;
+		private int steps;
+
+		String handle(String line) throws InterruptedException {
+			line = line.trim();
+			if (line.equals("quit"))
+				return "bye";
+			if (line.equals("reset")) {
+				belief = initial;
+				steps = 0;
+				return summary();
+			}
+			if (line.equals("top") || line.startsWith("top "))
+				return top(line);
+			if (line.equals("entropy"))
+				return entropy();
+
+			int[] colors;
+			try {
+				colors = MazeRunner.parseColors(line);
+			} catch (IllegalArgumentException e) {
+				return "error " + e.getMessage();
+			}
+			if (colors == null)
+				return "error empty request";
+			for (int color: colors)
+				step(color);
+			return summary();
+		}
+
+		private void step(int color) throws InterruptedException {
+			double[] next = scratch.take();
+			try {
+				problem.filterStep(belief, next, color);
+			} catch (RuntimeException e) {
+				scratch.put(next);
+				throw e;
+			}
+			// the shared P(L0) is never written: the pool gets a new vector instead
+			scratch.put(belief == initial ? new double[initial.length] : belief);
+			belief = next;
+			steps++;
+			readings.increment();
+		}
+
+		// "ok step x y p candidates"
+		private String summary() {
+			int best = 0;
+			for (int c = 1; c < belief.length; c++)
+				if (belief[c] > belief[best])
+					best = c;
+			double floor = belief[best] / 100;
+			int candidates = 0;
+			for (double p: belief)
+				if (p >= floor)
+					candidates++;
+			return String.format("ok %d %d %d %.6g %d", steps,
+					maze.getStateX(best), maze.getStateY(best), belief[best], candidates);
+		}
+
+		// one log per location: only on request
+		private String entropy() {
+			double entropy = 0;
+			for (double p: belief)
+				if (p > 0)
+					entropy -= p * Math.log(p);
+			return String.format("entropy %.6g", entropy);
+		}
+
+		// "top x:y:p ..." for the k most likely locations, most likely first
+		private String top(String line) {
+			int k = 5;
+			if (line.length() > 3) {
+				try {
+					k = Integer.parseInt(line.substring(4).trim());
+				} catch (NumberFormatException e) {
+					return "error not a number: " + line.substring(4).trim();
+				}
+			}
+			k = Math.max(1, Math.min(k, Math.min(100, belief.length)));
+
+			// insertion into the k best so far
+			int[] states = new int[k];
+			int num = 0;
+			for (int c = 0; c < belief.length; c++) {
+				if (num == k && belief[c] <= belief[states[k - 1]])
+					continue;
+				int i = num < k ? num++ : k - 1;
+				while (i > 0 && belief[states[i - 1]] < belief[c]) {
+					states[i] = states[i - 1];
+					i--;
+				}
+				states[i] = c;
+			}
+
+			StringBuilder s = new StringBuilder("top");
+			for (int i = 0; i < num; i++)
+				s.append(String.format(" %d:%d:%.6g", maze.getStateX(states[i]), maze.getStateY(states[i]), belief[states[i]]));
+			return s.toString();
+		}
+	}
+
+	public int getActiveSessions() {
+		return active.get();
+	}
+
+	public long getAcceptedSessions() {
+		return accepted.sum();
+	}
+
+	// connections turned away beyond maxSessions
+	public long getRejectedSessions() {
+		return rejected.sum();
+	}
+
+	// sessions closed after idleMillis without a request
+	public long getEvictedSessions() {
+		return evicted.sum();
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	// color readings filtered
+	public long getReadings() {
+		return readings.sum();
+	}
+
+	public String toString() {
+		return String.format("%d active, %d accepted, %d rejected, %d evicted; %d requests, %d readings",
+				getActiveSessions(), getAcceptedSessions(), getRejectedSessions(), getEvictedSessions(),
+				getRequests(), getReadings());
+	}
+
+	// stop accepting and close the server socket and all sessions
+	public void close() throws IOException {
+		closed = true;
+		server.close();
+		// ends reads blocked on the sockets, and interrupts waits for a scratch vector
+		for (Socket s: open) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+		sessions.shutdownNow();
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("usage: java SessionServer maze.maz [port] [maxSessions] [idleSeconds] [workers]");
+			System.exit(2);
+		}
+		Maze maze = Maze.readFromFile(args[0]);
+		if (maze == null) {
+			System.err.println("cannot read maze " + args[0]);
+			System.exit(1);
+		}
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+		int maxSessions = args.length > 2 ? Integer.parseInt(args[2]) : 50000;
+		int idleSeconds = args.length > 3 ? Integer.parseInt(args[3]) : 300;
+		int workers = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+		SessionServer server = new SessionServer(new BlindRobotMazeProblem(maze), maxSessions, idleSeconds * 1000, workers);
+		server.start(port);
+		System.out.println(String.format("%dx%d maze, %d states; listening on port %d, %d sessions at most, %d workers",
+				maze.width, maze.height, maze.getNumStates(), server.getPort(), maxSessions, workers));
+
+		// a line of counters every 10 s while something changes
+		String last = "";
+		while (true) {
+			Thread.sleep(10000);
+			String now = server.toString();
+			if (!now.equals(last))
+				System.out.println(now);
+			last = now;
+		}
+	}
+
+}
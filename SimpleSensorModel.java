@@ -0,0 +1,26 @@
+
+
+// if c(x,y) == s, p = correct; else p = wrong
+public class SimpleSensorModel implements SensorModel {
+
+	private double correct;
+	private double wrong;
+
+	// the default sensor: 0.88 right, 0.04 for each of the 3 other colors
+	public SimpleSensorModel() {
+		this(0.88, 0.04);
+	}
+
+	public SimpleSensorModel(double correct, double wrong) {
+		this.correct = correct;
+		this.wrong = wrong;
+	}
+
+	public double probability(Maze maze, int x, int y, int s) {
+		if (maze.getColor(x, y) == s)
+			return correct;
+		else
+			return wrong;
+	}
+
+}
@@ -0,0 +1,222 @@
+
+import java.util.Arrays;
+
+
+// online filtering P(Lt|c1:t) that only touches the states holding most of the mass
+// after each step the belief is pruned to
+// 		the fewest most likely states whose mass is at least 1 - massThreshold, and
+// 		at most topK states (if topK > 0)
+// the pruned states only spread to their neighbors on the next step, so once the
+// 		robot is localized a step costs O(active states) instead of O(N).
+// when the active states pass DENSE_FRACTION of the maze the session runs dense
+// 		steps (problem.filterStep); every CHECK_INTERVAL dense steps it tries to
+// 		prune again and goes back to sparse when few enough states are left.
+// the mass thrown away is reported, so the pruning error can be watched.
+public class SparseFilterSession {
+
+	// switch to dense when more than this fraction of the states are active
+	public static final double DENSE_FRACTION = 0.25;
+	// switch back to sparse when pruning leaves at most this fraction
+	public static final double SPARSE_FRACTION = 0.1;
+	// dense steps between two tries to go back to sparse
+	public static final int CHECK_INTERVAL = 16;
+
+	private BlindRobotMazeProblem problem;
+	private TransitionModel transModel;
+	private int size;
+
+	private double massThreshold;
+	private int topK;
+
+	// P(Xt|e1:t), and the buffer written by the next step
+	// in sparse mode both are 0 outside their active states
+	private double[] prob;
+	private double[] next;
+
+	private boolean sparse;
+	private int[] active;
+	private int numActive;
+	private int[] nextActive;
+	private boolean[] marked;
+	// scratch for pruning: (float prob bits << 32) | state
+	private long[] keys;
+
+	private int steps;
+	private int denseSteps;
+	private double lastDiscarded;
+	private double totalDiscarded;
+
+	SparseFilterSession(BlindRobotMazeProblem p, double massThreshold, int topK) {
+		problem = p;
+		transModel = p.getTransitionModel();
+		size = transModel.size;
+		this.massThreshold = massThreshold;
+		this.topK = topK;
+
+		prob = p.initialDistr();
+		next = new double[size];
+		active = new int[size];
+		nextActive = new int[size];
+		marked = new boolean[size];
+		keys = new long[size];
+
+		// P(L0) is uniform, so start dense
+		sparse = false;
+	}
+
+	// take color reading ct, return P(Lt|c1:t)
+	// the returned array is indexed by state and is only valid until the next update
+	public double[] update(int color) {
+		lastDiscarded = 0;
+		if (sparse)
+			sparseStep(color);
+		else {
+			problem.filterStep(prob, next, color);
+			swap();
+			denseSteps++;
+			if (denseSteps % CHECK_INTERVAL == 0)
+				tryGoSparse();
+		}
+		totalDiscarded += lastDiscarded;
+		steps++;
+		return prob;
+	}
+
+	private void swap() {
+		double[] tmp = prob;
+		prob = next;
+		next = tmp;
+	}
+
+	private void sparseStep(int color) {
+		double[] like = problem.likelihood(color);
+
+		// predict: push the mass of each active state to its successors
+		int num = 0;
+		for (int i = 0; i < numActive; i++) {
+			int s = active[i];
+			double p = prob[s];
+			for (int k = transModel.succStart[s]; k < transModel.succStart[s + 1]; k++) {
+				int to = transModel.succTo[k];
+				if (!marked[to]) {
+					marked[to] = true;
+					nextActive[num++] = to;
+				}
+				next[to] += transModel.succProb[k] * p;
+			}
+			prob[s] = 0;
+		}
+
+		// weight and alpha
+		double sum = 0;
+		for (int i = 0; i < num; i++) {
+			int s = nextActive[i];
+			marked[s] = false;
+			next[s] = next[s] * like[s];
+			sum += next[s];
+		}
+		for (int i = 0; i < num; i++)
+			next[nextActive[i]] = next[nextActive[i]] / sum;
+
+		swap();
+		int[] tmp = active;
+		active = nextActive;
+		nextActive = tmp;
+		numActive = num;
+
+		prune();
+
+		if (numActive > DENSE_FRACTION * size) {
+			sparse = false;
+			denseSteps = 0;
+		}
+	}
+
+	// keep the most likely active states, renormalize, record the mass thrown away
+	private void prune() {
+		applyPrune(select());
+	}
+
+	// sort the active states, most likely last in keys, and return how many are kept
+	private int select() {
+		for (int i = 0; i < numActive; i++) {
+			int s = active[i];
+			keys[i] = ((long) Float.floatToIntBits((float) prob[s]) << 32) | s;
+		}
+		Arrays.sort(keys, 0, numActive);
+
+		int limit = topK > 0 ? Math.min(topK, numActive) : numActive;
+		double kept = 0;
+		int num = 0;
+		for (int i = numActive - 1; i >= 0 && num < limit && kept < 1 - massThreshold; i--) {
+			kept += prob[(int) keys[i]];
+			num++;
+		}
+		return num;
+	}
+
+	// keep the num most likely states chosen by select
+	private void applyPrune(int num) {
+		if (num == numActive)
+			return;
+
+		double kept = 0;
+		for (int i = 0; i < num; i++) {
+			int s = (int) keys[numActive - 1 - i];
+			active[i] = s;
+			kept += prob[s];
+		}
+		for (int i = numActive - num - 1; i >= 0; i--)
+			prob[(int) keys[i]] = 0;
+		for (int i = 0; i < num; i++)
+			prob[active[i]] = prob[active[i]] / kept;
+
+		lastDiscarded += 1 - kept;
+		numActive = num;
+	}
+
+	// dense belief: go sparse if pruning leaves few enough states
+	private void tryGoSparse() {
+		numActive = 0;
+		for (int s = 0; s < size; s++)
+			if (prob[s] > 0)
+				active[numActive++] = s;
+
+		int num = select();
+		if (num > SPARSE_FRACTION * size)
+			return;
+
+		applyPrune(num);
+		sparse = true;
+		Arrays.fill(next, 0);
+	}
+
+	public boolean isSparse() {
+		return sparse;
+	}
+
+	// number of states updated by the next sparse step (size when dense)
+	public int getActiveCount() {
+		return sparse ? numActive : size;
+	}
+
+	public int getSteps() {
+		return steps;
+	}
+
+	// probability mass dropped by the last update
+	public double getLastDiscardedMass() {
+		return lastDiscarded;
+	}
+
+	// sum of the masses dropped so far
+	public double getTotalDiscardedMass() {
+		return totalDiscarded;
+	}
+
+	// copy of the current belief as a [height][width] grid
+	public double[][] getBelief() {
+		return problem.toGrid(prob);
+	}
+
+}
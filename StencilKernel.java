@@ -0,0 +1,15 @@
+
+
+// the two sums of the transition model over the states lo ... hi-1
+// 		predict: out[s] = sum_from P(s|from) * prob[from]
+// 		backward: out[s] = sum_to P(to|s) * b[to]
+// TransitionModel runs its CSR loops when no kernel is loaded
+public interface StencilKernel {
+
+	void predict(double[] prob, double[] out, int lo, int hi);
+
+	void backward(double[] b, double[] out, int lo, int hi);
+
+	String getName();
+
+}
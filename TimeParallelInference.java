@@ -0,0 +1,420 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+// filtering and Viterbi over very long evidence, split in time into one segment per thread
+// the steps forget where they started after a while: the filtered belief from two
+// 		starts ends up the same up to one factor per connected part of the maze
+// 		(the mass of a part never leaves it), and the Viterbi scores up to one offset
+// 		per part, once the best paths into its states go back to the same start.
+// so each segment is first run in parallel from P(L0) (uniform), as if it started
+// 		the evidence; the first one is exact.
+// then, in order, segment k is run again from the exact end of segment k-1 until
+// 		it meets its first run (the factors, or offsets, are the same within CONVERGED
+// 		over each part at one of the snapshot steps 1, 2, 4, ...); the end of the first
+// 		run is then scaled (shifted) part by part. a segment that never meets is run
+// 		again to its end, as the sequential engines would.
+// from the step they meet on, the first run takes the same decisions as the sequential
+// 		engines, so the Viterbi backpointers of the first run are kept as they are.
+// the speedup is near the number of threads when the segments are much longer than
+// 		the steps they need to meet (hundreds in a maze of a thousand locations).
+// the segment runs use the bands of the problem too: keep its parallelism at 1.
+// one call at a time.
+public class TimeParallelInference {
+
+	// difference still taken as the same, relative to the largest belief of a part
+	// 		(filter) or to the score (Viterbi)
+	public static final double CONVERGED = 1e-13;
+
+	// snapshots kept per segment, at steps 1, 2, 4, ... 2^(SNAPSHOTS-1)
+	// 		(Viterbi may need thousands of steps to meet in a large maze)
+	static final int SNAPSHOTS = 20;
+
+	private BlindRobotMazeProblem problem;
+	private ViterbiDecoder decoder;
+	private int threads;
+	private ExecutorService pool;
+
+	// connected part of each state, in the transition graph without directions
+	private int[] part;
+	private int numParts;
+
+	// steps run again by the fix-ups of the last call
+	private long fixupSteps;
+	// segments of the last call that had to be run again to their end
+	private int unmet;
+
+	public TimeParallelInference(BlindRobotMazeProblem p, int threads) {
+		problem = p;
+		decoder = new ViterbiDecoder(p);
+		this.threads = Math.max(1, threads);
+		pool = Executors.newFixedThreadPool(this.threads);
+		findParts(p.getTransitionModel());
+	}
+
+	// flood fill over the successors and the predecessors
+	private void findParts(TransitionModel m) {
+		part = new int[m.size];
+		Arrays.fill(part, -1);
+		int[] stack = new int[m.size];
+		for (int s = 0; s < m.size; s++) {
+			if (part[s] >= 0)
+				continue;
+			int top = 0;
+			stack[top++] = s;
+			part[s] = numParts;
+			while (top > 0) {
+				int c = stack[--top];
+				for (int k = m.succStart[c]; k < m.succStart[c + 1]; k++)
+					if (part[m.succTo[k]] < 0) {
+						part[m.succTo[k]] = numParts;
+						stack[top++] = m.succTo[k];
+					}
+				for (int k = m.predStart[c]; k < m.predStart[c + 1]; k++)
+					if (part[m.predFrom[k]] < 0) {
+						part[m.predFrom[k]] = numParts;
+						stack[top++] = m.predFrom[k];
+					}
+			}
+			numParts++;
+		}
+	}
+
+	// the first run of one segment: values at the snapshot steps, and at its end
+	private static class Segment {
+		int from;
+		int to;
+		// step of snapshot i: from + 2^i
+		double[][] snapshot;
+		// sum of the log normalizers (shifts) up to each snapshot, and over the segment
+		double[] logSum;
+		double logTotal;
+		double[] end;
+	}
+
+	// the outcome of filter: P(Xt|e1:t) and log P(e1:t)
+	public static class Filtered {
+		private double[] belief;
+		private double logLikelihood;
+
+		Filtered(double[] belief, double logLikelihood) {
+			this.belief = belief;
+			this.logLikelihood = logLikelihood;
+		}
+
+		// P(Xt|e1:t) after the last color, indexed by state
+		public double[] getBelief() {
+			return belief;
+		}
+
+		public double getLogLikelihood() {
+			return logLikelihood;
+		}
+	}
+
+	// P(Xt|e1:t) after the last color, as the last step of getFilteredDistr
+	public Filtered filter(int[] colors) {
+		InferenceEvents.Call call = InferenceEvents.begin("timeParallelFilter");
+		Step step = new Step() {
+			public double[] start() {
+				return problem.initialDistr();
+			}
+
+			public double step(double[] prob, int color, double[] next, int t) {
+				return Math.log(problem.filterStep(prob, next, color));
+			}
+
+			// factor of each part: fixed / first at the state of the part with the most mass
+			public double[] meet(double[] fixed, double[] first) {
+				int[] ref = reference(fixed);
+				double[] factor = new double[numParts];
+				for (int q = 0; q < numParts; q++)
+					if (first[ref[q]] > 0)
+						factor[q] = fixed[ref[q]] / first[ref[q]];
+				// within CONVERGED of the largest belief of the part
+				for (int c = 0; c < fixed.length; c++) {
+					double f = factor[part[c]];
+					if (!(Math.abs(fixed[c] - f * first[c]) <= CONVERGED * fixed[ref[part[c]]]))
+						return null;
+				}
+				return factor;
+			}
+
+			public double rebase(double[] end, double[] factor) {
+				double sum = 0;
+				for (int c = 0; c < end.length; c++) {
+					end[c] *= factor[part[c]];
+					sum += end[c];
+				}
+				for (int c = 0; c < end.length; c++)
+					end[c] /= sum;
+				return Math.log(sum);
+			}
+		};
+		List<Segment> segments = run(colors, step);
+
+		// fix up in order; logLikelihood sums the log normalizers
+		double[] belief = segments.get(0).end;
+		double logLikelihood = segments.get(0).logTotal;
+		for (int k = 1; k < segments.size(); k++) {
+			Segment s = segments.get(k);
+			fixup(s, colors, belief.clone(), step);
+			belief = s.end;
+			logLikelihood += s.logTotal;
+		}
+		InferenceEvents.end(call, colors.length);
+		return new Filtered(belief, logLikelihood);
+	}
+
+	// Viterbi over the evidence, the same result as BlindRobotMazeProblem.getViterbi
+	// 		(the number of paths is only counted when asked for)
+	public ViterbiDecoder.Result viterbi(int[] colors) {
+		InferenceEvents.Call call = InferenceEvents.begin("timeParallelViterbi");
+		// tieMask[t] is written by the segment of step t, then by its fix-up
+		final byte[][] tieMask = new byte[colors.length][];
+		Step step = new Step() {
+			public double[] start() {
+				double[] init = problem.initialDistr();
+				double[] score = new double[init.length];
+				for (int c = 0; c < init.length; c++)
+					score[c] = Math.log(init[c]);
+				return score;
+			}
+
+			public double step(double[] score, int color, double[] next, int t) {
+				if (tieMask[t] == null)
+					tieMask[t] = new byte[score.length];
+				double shift = decoder.step(score, color, next, tieMask[t]);
+				return shift == Double.NEGATIVE_INFINITY ? 0 : shift;
+			}
+
+			// offset of each part: fixed - first at the state of the part with the best score
+			public double[] meet(double[] fixed, double[] first) {
+				int[] ref = reference(fixed);
+				double[] offset = new double[numParts];
+				for (int q = 0; q < numParts; q++)
+					if (fixed[ref[q]] != Double.NEGATIVE_INFINITY)
+						offset[q] = fixed[ref[q]] - first[ref[q]];
+				for (int c = 0; c < fixed.length; c++) {
+					// -inf only meets -inf
+					if ((fixed[c] == Double.NEGATIVE_INFINITY) != (first[c] == Double.NEGATIVE_INFINITY))
+						return null;
+					if (fixed[c] == Double.NEGATIVE_INFINITY)
+						continue;
+					double d = fixed[c] - first[c] - offset[part[c]];
+					if (!(Math.abs(d) <= CONVERGED * Math.max(1, Math.abs(fixed[c]))))
+						return null;
+				}
+				return offset;
+			}
+
+			public double rebase(double[] end, double[] offset) {
+				double max = Double.NEGATIVE_INFINITY;
+				for (int c = 0; c < end.length; c++) {
+					end[c] += offset[part[c]];
+					max = Math.max(max, end[c]);
+				}
+				if (max == Double.NEGATIVE_INFINITY)
+					return 0;
+				for (int c = 0; c < end.length; c++)
+					end[c] -= max;
+				return max;
+			}
+		};
+		List<Segment> segments = run(colors, step);
+
+		double[] score = segments.get(0).end;
+		double logOffset = segments.get(0).logTotal;
+		for (int k = 1; k < segments.size(); k++) {
+			Segment s = segments.get(k);
+			fixup(s, colors, score.clone(), step);
+			score = s.end;
+			logOffset += s.logTotal;
+		}
+		ViterbiDecoder.Result result = new ViterbiDecoder.Result(problem.getTransitionModel(), tieMask, score, logOffset);
+		InferenceEvents.end(call, colors.length);
+		return result;
+	}
+
+	// one step of the inference: next from prev, returns the log normalizer (or shift)
+	private interface Step {
+		// the start of every segment in the first run
+		double[] start();
+
+		double step(double[] prev, int color, double[] next, int t);
+
+		// one factor (offset) per part from the first run to the fixed one at the same
+		// 		step, null if they differ by more within a part
+		double[] meet(double[] fixed, double[] first);
+
+		// the first end to the fixed one, in place; returns the log normalizer (shift) it adds
+		double rebase(double[] end, double[] factor);
+	}
+
+	// state with the largest value of each part
+	private int[] reference(double[] values) {
+		int[] ref = new int[numParts];
+		Arrays.fill(ref, -1);
+		for (int c = 0; c < values.length; c++)
+			if (ref[part[c]] < 0 || values[c] > values[ref[part[c]]])
+				ref[part[c]] = c;
+		return ref;
+	}
+
+	// the first run of every segment, in parallel
+	private List<Segment> run(final int[] colors, final Step step) {
+		fixupSteps = 0;
+		unmet = 0;
+		int num = Math.max(1, Math.min(threads, colors.length));
+		List<Callable<Segment>> tasks = new ArrayList<Callable<Segment>>(num);
+		for (int k = 0; k < num; k++) {
+			final Segment s = new Segment();
+			s.from = (int) ((long) colors.length * k / num);
+			s.to = (int) ((long) colors.length * (k + 1) / num);
+			tasks.add(new Callable<Segment>() {
+				public Segment call() {
+					runSegment(s, colors, step);
+					return s;
+				}
+			});
+		}
+
+		List<Segment> segments = new ArrayList<Segment>(num);
+		try {
+			for (Future<Segment> f: pool.invokeAll(tasks))
+				segments.add(f.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return segments;
+	}
+
+	private static void runSegment(Segment s, int[] colors, Step step) {
+		double[] prob = step.start();
+		double[] next = new double[prob.length];
+		int snapshots = Math.min(SNAPSHOTS, 32 - Integer.numberOfLeadingZeros(s.to - s.from));
+		s.snapshot = new double[snapshots][];
+		s.logSum = new double[snapshots];
+
+		double logSum = 0;
+		int i = 0;
+		for (int t = s.from; t < s.to; t++) {
+			logSum += step.step(prob, colors[t], next, t);
+			double[] tmp = prob;
+			prob = next;
+			next = tmp;
+			if (i < snapshots && t + 1 - s.from == 1 << i) {
+				s.snapshot[i] = prob.clone();
+				s.logSum[i] = logSum;
+				i++;
+			}
+		}
+		s.logTotal = logSum;
+		s.end = prob;
+	}
+
+	// run segment s again from its exact start prob until it meets its first run;
+	// 		then end and logTotal of s are exact
+	private void fixup(Segment s, int[] colors, double[] prob, Step step) {
+		double[] next = new double[prob.length];
+		double logSum = 0;
+		int i = 0;
+		for (int t = s.from; t < s.to; t++) {
+			logSum += step.step(prob, colors[t], next, t);
+			double[] tmp = prob;
+			prob = next;
+			next = tmp;
+			fixupSteps++;
+			if (i < s.snapshot.length && t + 1 - s.from == 1 << i) {
+				double[] factor = step.meet(prob, s.snapshot[i]);
+				if (factor != null) {
+					s.logTotal = logSum + s.logTotal - s.logSum[i] + step.rebase(s.end, factor);
+					return;
+				}
+				i++;
+			}
+		}
+		unmet++;
+		s.logTotal = logSum;
+		s.end = prob;
+	}
+
+	// connected parts of the maze
+	public int getNumParts() {
+		return numParts;
+	}
+
+	// steps run again by the fix-ups of the last call (0 with one segment)
+	public long getFixupSteps() {
+		return fixupSteps;
+	}
+
+	// segments of the last call that had to be run again to their end
+	public int getUnmetSegments() {
+		return unmet;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	public static void main(String[] args) {
+		// a maze file, or the size of a generated maze
+		Maze maze;
+		if (args.length > 0 && !args[0].matches("\\d+"))
+			maze = Maze.readFromFile(args[0]);
+		else {
+			int size = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+			maze = MazeGenerator.generate(size, size, 0.3, size);
+		}
+		int length = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int[] colors = MazeGenerator.evidence(maze, length, 1);
+		BlindRobotMazeProblem problem = new BlindRobotMazeProblem(maze);
+
+		long start = System.nanoTime();
+		FilterSession session = problem.newFilterSession();
+		double[] exact = null;
+		for (int color: colors)
+			exact = session.update(color);
+		long sequential = System.nanoTime() - start;
+
+		TimeParallelInference parallel = new TimeParallelInference(problem, threads);
+		start = System.nanoTime();
+		Filtered filtered = parallel.filter(colors);
+		long nanos = System.nanoTime() - start;
+
+		double err = 0;
+		for (int c = 0; c < exact.length; c++)
+			err = Math.max(err, Math.abs(exact[c] - filtered.getBelief()[c]));
+		System.out.println(String.format("filter:  sequential %.3f s, %d threads %.3f s (%.2fx), fix-up %d steps, %d unmet, max error %.3g",
+				sequential / 1e9, threads, nanos / 1e9, (double) sequential / nanos,
+				parallel.getFixupSteps(), parallel.getUnmetSegments(), err));
+
+		start = System.nanoTime();
+		ViterbiDecoder.Result seq = problem.getViterbi(colors, null);
+		sequential = System.nanoTime() - start;
+		start = System.nanoTime();
+		ViterbiDecoder.Result par = parallel.viterbi(colors);
+		nanos = System.nanoTime() - start;
+		System.out.println(String.format("viterbi: sequential %.3f s, %d threads %.3f s (%.2fx), fix-up %d steps, %d unmet, log P %.6f / %.6f, same path %b",
+				sequential / 1e9, threads, nanos / 1e9, (double) sequential / nanos,
+				parallel.getFixupSteps(), parallel.getUnmetSegments(), seq.getLogProb(), par.getLogProb(),
+				Arrays.deepEquals(seq.getPath().toArray(), par.getPath().toArray())));
+		parallel.shutdown();
+	}
+
+}
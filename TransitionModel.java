@@ -0,0 +1,206 @@
+
+
+// compiled transition model P(Lt|Lt-1) of a maze
+// only legal locations (states of Maze.getState) are in the model; walls are skipped
+// a state has at most 5 neighbors (4 actions + stay), so the model is
+// 		kept as two sparse (CSR) tables:
+// 		predecessors of s: predFrom[predStart[s] ... predStart[s+1]-1], P(s|from) in predProb
+// 		successors of s: succTo[succStart[s] ... succStart[s+1]-1], P(to|s) in succProb
+public final class TransitionModel {
+
+	public final int width;
+	public final int height;
+	// number of states
+	public final int size;
+
+	private final Maze maze;
+	public final double slip;
+
+	final int[] predStart;
+	final int[] predFrom;
+	final double[] predProb;
+
+	final int[] succStart;
+	final int[] succTo;
+	final double[] succProb;
+
+	// vectorized predict and backward, null to run the CSR loops
+	private StencilKernel kernel;
+
+	public TransitionModel(Maze maze, int[][] actions) {
+		this(maze, actions, 0);
+	}
+
+	// slip: probability that the robot stays in place instead of trying an action
+	public TransitionModel(Maze maze, int[][] actions, double slip) {
+		this.maze = maze;
+		this.slip = slip;
+		width = maze.width;
+		height = maze.height;
+		size = maze.getNumStates();
+
+		// each action is chosen with the same probability, when the robot does not slip
+		double p = (1 - slip) / actions.length;
+
+		// successors: if the action can be done, P(L(xNew, yNew)|L(x,y)) = p
+		// 		else P(L(x,y)|L(x,y)) += p
+		// 		and P(L(x,y)|L(x,y)) += slip
+		succStart = new int[size + 1];
+		int[] to = new int[size * (actions.length + 1)];
+		double[] prob = new double[size * (actions.length + 1)];
+		int num = 0;
+		for (int c = 0; c < size; c++) {
+			int x = maze.getStateX(c);
+			int y = maze.getStateY(c);
+			succStart[c] = num;
+
+			double stay = slip;
+			for (int[] action: actions) {
+				int xNew = x + action[0];
+				int yNew = y + action[1];
+				if (maze.isLegal(xNew, yNew)) {
+					to[num] = maze.getState(xNew, yNew);
+					prob[num] = p;
+					num++;
+				}
+				else
+					stay += p;
+			}
+			if (stay > 0) {
+				to[num] = c;
+				prob[num] = stay;
+				num++;
+			}
+		}
+		succStart[size] = num;
+		succTo = new int[num];
+		succProb = new double[num];
+		System.arraycopy(to, 0, succTo, 0, num);
+		System.arraycopy(prob, 0, succProb, 0, num);
+
+		// predecessors: the transpose of the successor table
+		predStart = new int[size + 1];
+		for (int k = 0; k < num; k++)
+			predStart[succTo[k] + 1]++;
+		for (int c = 0; c < size; c++)
+			predStart[c + 1] += predStart[c];
+
+		predFrom = new int[num];
+		predProb = new double[num];
+		int[] next = new int[size];
+		System.arraycopy(predStart, 0, next, 0, size);
+		for (int c = 0; c < size; c++)
+			for (int k = succStart[c]; k < succStart[c + 1]; k++) {
+				int d = next[succTo[k]]++;
+				predFrom[d] = c;
+				predProb[d] = succProb[k];
+			}
+
+		kernel = loadVectorKernel(actions);
+	}
+
+	// VectorStencilKernel if the actions are the 4 compass moves and the
+	// 		jdk.incubator.vector module is there (and -Dmaze.vector=false is not set), else null
+	private StencilKernel loadVectorKernel(int[][] actions) {
+		if ("false".equals(System.getProperty("maze.vector")))
+			return null;
+		if (!isCompass(actions))
+			return null;
+		if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+			return null;
+		try {
+			return (StencilKernel) Class.forName("VectorStencilKernel")
+					.getConstructor(TransitionModel.class).newInstance(this);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	// true if the actions are N, S, E and W, once each in any order:
+	// 		the only stencil VectorStencilKernel knows
+	static boolean isCompass(int[][] actions) {
+		if (actions.length != 4)
+			return false;
+		boolean[] seen = new boolean[4];
+		for (int[] action: actions) {
+			if (action.length != 2 || Math.abs(action[0]) + Math.abs(action[1]) != 1)
+				return false;
+			// (1,0) -> 0, (-1,0) -> 1, (0,1) -> 2, (0,-1) -> 3
+			int i = action[0] != 0 ? (1 - action[0]) / 2 : 2 + (1 - action[1]) / 2;
+			if (seen[i])
+				return false;
+			seen[i] = true;
+		}
+		return true;
+	}
+
+	// name of the kernel running predict and backward
+	public String getKernelName() {
+		return kernel == null ? "scalar" : kernel.getName();
+	}
+
+	// bytes held by the tables and the kernel (estimated)
+	public long getBytes() {
+		long csr = 2 * (4L * (size + 1) + 12L * predFrom.length);
+		// VectorStencilKernel: 10 coefficients and 2 indices per state
+		return csr + (kernel == null ? 0 : 88L * size);
+	}
+
+	// state of location (x,y), -1 for walls
+	public int index(int x, int y) {
+		return maze.getState(x, y);
+	}
+
+	public int getX(int s) {
+		return maze.getStateX(s);
+	}
+
+	public int getY(int s) {
+		return maze.getStateY(s);
+	}
+	
+	// rowStart[y]: first state of row y, rowStart[height] = size
+	public int[] rowStart() {
+		return maze.getRowStates();
+	}
+
+	// P(Xt+1|e1:t) = sum_xt(P(Xt+1|xt) * P(xt|e1:t))
+	public void predict(double[] prob, double[] out) {
+		predict(prob, out, 0, size);
+	}
+
+	// predict only the states lo ... hi-1
+	public void predict(double[] prob, double[] out, int lo, int hi) {
+		if (kernel != null) {
+			kernel.predict(prob, out, lo, hi);
+			return;
+		}
+		for (int c = lo; c < hi; c++) {
+			double sum = 0;
+			for (int k = predStart[c]; k < predStart[c + 1]; k++)
+				sum += predProb[k] * prob[predFrom[k]];
+			out[c] = sum;
+		}
+	}
+
+	// P(ek:t|Xk-1) = sum_xk(P(xk|Xk-1) * P(ek|xk) * P(ek+1:t|xk))
+	// 		b holds P(ek|xk) * P(ek+1:t|xk)
+	public void backward(double[] b, double[] out) {
+		backward(b, out, 0, size);
+	}
+
+	// backward only for the states lo ... hi-1
+	public void backward(double[] b, double[] out, int lo, int hi) {
+		if (kernel != null) {
+			kernel.backward(b, out, lo, hi);
+			return;
+		}
+		for (int c = lo; c < hi; c++) {
+			double sum = 0;
+			for (int k = succStart[c]; k < succStart[c + 1]; k++)
+				sum += succProb[k] * b[succTo[k]];
+			out[c] = sum;
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+
+// predict and backward of the transition model with the Vector API
+// the motion is a 4-neighbor stencil, so each sum has 5 terms per state:
+// 		self, west (state s-1), east (state s+1): shifted loads of the belief vector
+// 		north, south: loaded lane by lane through an index array
+// a term whose neighbor is a wall has coefficient 0 (the wall mask), and its
+// 		index points at s itself, so every lane can be computed the same way.
+// needs --add-modules jdk.incubator.vector to compile and run;
+// 		TransitionModel only loads it when the module is there.
+public class VectorStencilKernel implements StencilKernel {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	private int size;
+
+	// coefficients of the 5 terms: [SELF ... SOUTH][s]
+	private static final int SELF = 0, WEST = 1, EAST = 2, NORTH = 3, SOUTH = 4;
+	private double[][] pred;
+	private double[][] succ;
+	private int[] north;
+	private int[] south;
+
+	// north and south lanes of the vector loop; the kernel is shared by the band threads
+	private final ThreadLocal<double[]> gathers =
+			ThreadLocal.withInitial(() -> new double[2 * SPECIES.length()]);
+
+	public VectorStencilKernel(TransitionModel m) {
+		size = m.size;
+		pred = new double[5][size];
+		succ = new double[5][size];
+		north = new int[size];
+		south = new int[size];
+		for (int s = 0; s < size; s++) {
+			north[s] = s;
+			south[s] = s;
+		}
+
+		for (int s = 0; s < size; s++) {
+			for (int k = m.predStart[s]; k < m.predStart[s + 1]; k++)
+				pred[term(m, s, m.predFrom[k])][s] += m.predProb[k];
+			for (int k = m.succStart[s]; k < m.succStart[s + 1]; k++)
+				succ[term(m, s, m.succTo[k])][s] += m.succProb[k];
+		}
+	}
+
+	// which term neighbor n is for state s; records the north and south index
+	private int term(TransitionModel m, int s, int n) {
+		if (n == s)
+			return SELF;
+		int dy = m.getY(n) - m.getY(s);
+		if (dy == 0)
+			return n < s ? WEST : EAST;
+		if (dy > 0) {
+			north[s] = n;
+			return NORTH;
+		}
+		south[s] = n;
+		return SOUTH;
+	}
+
+	public void predict(double[] prob, double[] out, int lo, int hi) {
+		run(pred, prob, out, lo, hi);
+	}
+
+	public void backward(double[] b, double[] out, int lo, int hi) {
+		run(succ, b, out, lo, hi);
+	}
+
+	public String getName() {
+		return "vector" + SPECIES.length() * 64;
+	}
+
+	private void run(double[][] p, double[] in, double[] out, int lo, int hi) {
+		int s = lo;
+		// north and south lanes, loaded one by one: the gather loads of the Vector API
+		// 		crash the JIT on some AVX-512 machines (JDK 21.0.1)
+		int lanes = SPECIES.length();
+		double[] gather = gathers.get();
+
+		// the shifted loads read s-1 and s+1, so the first and last state are done alone
+		if (s == 0 && s < hi)
+			scalar(p, in, out, s++);
+		int upper = Math.min(hi, size - 1);
+		for (; s + lanes <= upper; s += lanes) {
+			DoubleVector v = DoubleVector.fromArray(SPECIES, p[SELF], s)
+					.mul(DoubleVector.fromArray(SPECIES, in, s));
+			v = DoubleVector.fromArray(SPECIES, p[WEST], s)
+					.fma(DoubleVector.fromArray(SPECIES, in, s - 1), v);
+			v = DoubleVector.fromArray(SPECIES, p[EAST], s)
+					.fma(DoubleVector.fromArray(SPECIES, in, s + 1), v);
+			for (int i = 0; i < lanes; i++) {
+				gather[i] = in[north[s + i]];
+				gather[lanes + i] = in[south[s + i]];
+			}
+			v = DoubleVector.fromArray(SPECIES, p[NORTH], s)
+					.fma(DoubleVector.fromArray(SPECIES, gather, 0), v);
+			v = DoubleVector.fromArray(SPECIES, p[SOUTH], s)
+					.fma(DoubleVector.fromArray(SPECIES, gather, lanes), v);
+			v.intoArray(out, s);
+		}
+		for (; s < hi; s++)
+			scalar(p, in, out, s);
+	}
+
+	private void scalar(double[][] p, double[] in, double[] out, int s) {
+		// same operations as one lane of the vector loop
+		double sum = p[SELF][s] * in[s];
+		if (p[WEST][s] != 0)
+			sum = Math.fma(p[WEST][s], in[s - 1], sum);
+		if (p[EAST][s] != 0)
+			sum = Math.fma(p[EAST][s], in[s + 1], sum);
+		sum = Math.fma(p[NORTH][s], in[north[s]], sum);
+		sum = Math.fma(p[SOUTH][s], in[south[s]], sum);
+		out[s] = sum;
+	}
+
+}
@@ -0,0 +1,350 @@
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+// Viterbi in log space over the compiled transition model
+// max log P(x0,...xt, Xt+1, e1:t+1) = log P(et+1|Xt+1) + max( log P(Xt+1|xt) + max log P(x0,...,xt, e1:t) )
+// backpointers are kept as one byte per location and step: bit k set means the
+// 		k-th predecessor of the location (in the CSR table) is one of the maxarg xt,
+// 		so a location has at most 8 predecessors (5 with the 4 moves and staying).
+// tied paths are counted by dynamic programming and enumerated lazily, so the number
+// 		of ties never has to fit in memory.
+public class ViterbiDecoder {
+
+	// two log scores closer than this are treated as a tie
+	// scores are shifted by their max every step, so they stay small
+	public static final double TIE_EPSILON = 1e-9;
+
+	// predecessors a backpointer byte can tell apart
+	static final int MAX_PREDECESSORS = 8;
+
+	private BlindRobotMazeProblem problem;
+	private TransitionModel transModel;
+
+	// log P(c|from), parallel to transModel.predProb
+	private double[] predLogProb;
+
+	// log of the likelihood vectors of the problem, for colors 0 ... Maze.NUM_COLORS
+	private double[][] logLike;
+
+	public ViterbiDecoder(BlindRobotMazeProblem p) {
+		problem = p;
+		transModel = p.getTransitionModel();
+		for (int c = 0; c < transModel.size; c++) {
+			int preds = transModel.predStart[c + 1] - transModel.predStart[c];
+			if (preds > MAX_PREDECESSORS)
+				throw new IllegalArgumentException("state " + c + " has " + preds
+						+ " predecessors, backpointers hold " + MAX_PREDECESSORS);
+		}
+
+		predLogProb = new double[transModel.predProb.length];
+		for (int k = 0; k < predLogProb.length; k++)
+			predLogProb[k] = Math.log(transModel.predProb[k]);
+
+		logLike = new double[Maze.NUM_COLORS + 1][];
+		for (int s = 0; s <= Maze.NUM_COLORS; s++)
+			logLike[s] = log(p.likelihood(s));
+	}
+
+	// log P(C==s|L) for every state
+	private double[] logLikelihood(int s) {
+		if (s >= 0 && s < logLike.length)
+			return logLike[s];
+		return log(problem.likelihood(s));
+	}
+
+	private static double[] log(double[] like) {
+		double[] log = new double[like.length];
+		for (int c = 0; c < like.length; c++)
+			log[c] = Math.log(like[c]);
+		return log;
+	}
+
+	// run Viterbi over the evidence
+	// if probDistr is not null, the normalized max P(x0,...xt, Xt|e1:t) of each step is added to it
+	public Result decode(int[] colors, ArrayList<double[][]> probDistr) {
+		int size = transModel.size;
+
+		// Initial probability distribution: log P(L0)
+		double[] score = new double[size];
+		double[] next = new double[size];
+		double[] init = problem.initialDistr();
+		for (int c = 0; c < size; c++)
+			score[c] = Math.log(init[c]);
+		if (probDistr != null)
+			probDistr.add(problem.toGrid(init));
+
+		// number of co-optimal paths ending in each location, saturates at Long.MAX_VALUE
+		long[] count = new long[size];
+		long[] nextCount = new long[size];
+		for (int c = 0; c < size; c++)
+			count[c] = init[c] > 0 ? 1 : 0;
+
+		// tieMask[t][c]: which predecessors of c at step t+1 are maxarg xt
+		byte[][] tieMask = new byte[colors.length][];
+
+		// sum of the shifts, to get back the real log probability
+		double logOffset = 0;
+
+		RowBands bands = problem.getBands();
+		for (int t = 0; t < colors.length; t++) {
+			final byte[] mask = new byte[size];
+			final double[] sensor = logLikelihood(colors[t]);
+			final double[] score_t = score;
+			final double[] next_t = next;
+			final long[] count_t = count;
+			final long[] nextCount_t = nextCount;
+
+			final double stepMax = bands.max((lo, hi) -> step(score_t, count_t, sensor, next_t, nextCount_t, mask, lo, hi));
+
+			// shift by the max, like alpha in the product form
+			if (stepMax != Double.NEGATIVE_INFINITY) {
+				bands.forEach((lo, hi) -> {
+					for (int c = lo; c < hi; c++)
+						next_t[c] -= stepMax;
+					return 0;
+				});
+				logOffset += stepMax;
+			}
+
+			tieMask[t] = mask;
+			double[] tmp = score;
+			score = next;
+			next = tmp;
+			long[] tmpCount = count;
+			count = nextCount;
+			nextCount = tmpCount;
+
+			if (probDistr != null)
+				probDistr.add(problem.toGrid(normalize(score)));
+		}
+
+		return new Result(transModel, tieMask, score, count, logOffset);
+	}
+
+	// one step over all locations without counting the paths, for TimeParallelInference
+	// next gets the new scores shifted by their max, which is returned
+	double step(final double[] score, int color, final double[] next, final byte[] mask) {
+		final double[] sensor = logLikelihood(color);
+		RowBands bands = problem.getBands();
+		final double stepMax = bands.max((lo, hi) -> step(score, null, sensor, next, null, mask, lo, hi));
+		if (stepMax != Double.NEGATIVE_INFINITY)
+			bands.forEach((lo, hi) -> {
+				for (int c = lo; c < hi; c++)
+					next[c] -= stepMax;
+				return 0;
+			});
+		return stepMax;
+	}
+
+	// one step for the locations lo ... hi-1, returns the max of the new scores
+	// count and nextCount may be null: the paths are not counted
+	private double step(double[] score, long[] count, double[] sensor,
+			double[] next, long[] nextCount, byte[] mask, int lo, int hi) {
+		double stepMax = Double.NEGATIVE_INFINITY;
+		for (int c = lo; c < hi; c++) {
+			double max = Double.NEGATIVE_INFINITY;
+			int bits = 0;
+			long num = 0;
+
+			// for each xt, max ( log P(Xt+1|xt) + max log P(x0,...,xt, e1:t) )
+			int first = transModel.predStart[c];
+			for (int k = first; k < transModel.predStart[c + 1]; k++) {
+				double tmp = predLogProb[k] + score[transModel.predFrom[k]];
+				if (tmp == Double.NEGATIVE_INFINITY)
+					continue;
+				if (tmp > max + TIE_EPSILON) {
+					max = tmp;
+					bits = 1 << (k - first);
+					if (count != null)
+						num = count[transModel.predFrom[k]];
+				}
+				else if (tmp >= max - TIE_EPSILON) {
+					bits |= 1 << (k - first);
+					if (count != null)
+						num = addSaturated(num, count[transModel.predFrom[k]]);
+				}
+			}
+
+			max += sensor[c];
+			next[c] = max;
+			mask[c] = (byte) bits;
+			if (nextCount != null)
+				nextCount[c] = num;
+			if (max > stepMax)
+				stepMax = max;
+		}
+		return stepMax;
+	}
+
+	// exp(score) / sum
+	private static double[] normalize(double[] score) {
+		double[] prob = new double[score.length];
+		double sum = 0;
+		for (int c = 0; c < score.length; c++) {
+			prob[c] = Math.exp(score[c]);
+			sum += prob[c];
+		}
+		for (int c = 0; c < score.length; c++)
+			prob[c] = prob[c] / sum;
+		return prob;
+	}
+
+	static long addSaturated(long a, long b) {
+		long r = a + b;
+		return r < 0 ? Long.MAX_VALUE : r;
+	}
+
+	// outcome of one decode: the best log probability, the number of co-optimal paths,
+	// 		and the paths themselves, built one at a time by the iterator
+	public static class Result implements Iterable<ArrayList<int[]>> {
+
+		private TransitionModel transModel;
+		private byte[][] tieMask;
+
+		// locations where a co-optimal path ends
+		private int[] ends;
+		private double logProb;
+		private long pathCount;
+
+		Result(TransitionModel m, byte[][] mask, double[] score, long[] count, double logOffset) {
+			this(m, mask, score, logOffset);
+			pathCount = 0;
+			for (int c: ends)
+				pathCount = addSaturated(pathCount, count[c]);
+		}
+
+		// the paths are counted from the tie masks when first asked for (P(L0) is uniform)
+		Result(TransitionModel m, byte[][] mask, double[] score, double logOffset) {
+			transModel = m;
+			tieMask = mask;
+
+			double max = Double.NEGATIVE_INFINITY;
+			for (double s: score)
+				if (s > max)
+					max = s;
+
+			int num = 0;
+			int[] tmp = new int[score.length];
+			for (int c = 0; c < score.length; c++)
+				if (max != Double.NEGATIVE_INFINITY && score[c] >= max - TIE_EPSILON)
+					tmp[num++] = c;
+			ends = new int[num];
+			System.arraycopy(tmp, 0, ends, 0, num);
+			logProb = max + logOffset;
+			pathCount = -1;
+		}
+
+		// log P(x0,...,xt, e1:t) of the most likely sequence
+		public double getLogProb() {
+			return logProb;
+		}
+
+		// number of co-optimal paths, Long.MAX_VALUE if there are at least that many
+		public synchronized long getPathCount() {
+			if (pathCount < 0)
+				pathCount = countPaths();
+			return pathCount;
+		}
+
+		// the counts of decode, forward over the tie masks
+		private long countPaths() {
+			long[] count = new long[transModel.size];
+			long[] next = new long[transModel.size];
+			Arrays.fill(count, 1);
+			for (byte[] mask: tieMask) {
+				for (int c = 0; c < count.length; c++) {
+					int first = transModel.predStart[c];
+					long num = 0;
+					for (int bits = mask[c] & 0xff; bits != 0; bits &= bits - 1)
+						num = addSaturated(num, count[transModel.predFrom[first + Integer.numberOfTrailingZeros(bits)]]);
+					next[c] = num;
+				}
+				long[] tmp = count;
+				count = next;
+				next = tmp;
+			}
+			long paths = 0;
+			for (int c: ends)
+				paths = addSaturated(paths, count[c]);
+			return paths;
+		}
+
+		// the first co-optimal path
+		public ArrayList<int[]> getPath() {
+			Iterator<ArrayList<int[]>> it = iterator();
+			return it.hasNext() ? it.next() : null;
+		}
+
+		// co-optimal paths, as lists of {x, y} from L0 to Lt
+		// no recursion: the iterator keeps one location and one choice per step
+		public Iterator<ArrayList<int[]>> iterator() {
+			return new PathIterator();
+		}
+
+		private class PathIterator implements Iterator<ArrayList<int[]>> {
+			private int steps = tieMask.length;
+			// loc[t]: location at step t of the current path
+			private int[] loc = new int[steps + 1];
+			// choice[t]: bit of tieMask[t-1][loc[t]] used to get loc[t-1]
+			private int[] choice = new int[steps + 1];
+			private int end = 0;
+			private boolean hasNext;
+
+			PathIterator() {
+				hasNext = ends.length > 0;
+				if (hasNext) {
+					loc[steps] = ends[0];
+					descend(steps);
+				}
+			}
+
+			// take the first tied predecessor from step t down to step 0
+			private void descend(int t) {
+				for (; t > 0; t--) {
+					int bits = tieMask[t - 1][loc[t]] & 0xff;
+					choice[t] = Integer.numberOfTrailingZeros(bits);
+					loc[t - 1] = transModel.predFrom[transModel.predStart[loc[t]] + choice[t]];
+				}
+			}
+
+			// move to the next path: change the latest choice that still has another tie
+			private void advance() {
+				for (int t = 1; t <= steps; t++) {
+					int bits = (tieMask[t - 1][loc[t]] & 0xff) >>> (choice[t] + 1);
+					if (bits != 0) {
+						choice[t] += Integer.numberOfTrailingZeros(bits) + 1;
+						loc[t - 1] = transModel.predFrom[transModel.predStart[loc[t]] + choice[t]];
+						descend(t - 1);
+						return;
+					}
+				}
+				end++;
+				if (end < ends.length) {
+					loc[steps] = ends[end];
+					descend(steps);
+				}
+				else
+					hasNext = false;
+			}
+
+			public boolean hasNext() {
+				return hasNext;
+			}
+
+			public ArrayList<int[]> next() {
+				if (!hasNext)
+					throw new NoSuchElementException();
+				ArrayList<int[]> path = new ArrayList<int[]>(steps + 1);
+				for (int t = 0; t <= steps; t++)
+					path.add(new int[]{transModel.getX(loc[t]), transModel.getY(loc[t])});
+				advance();
+				return path;
+			}
+		}
+	}
+
+}
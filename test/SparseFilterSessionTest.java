@@ -0,0 +1,67 @@
+// SparseFilterSession against FilterSession on the same evidence
+// 		threshold 0: nothing is pruned, so the beliefs are the exact ones
+// 		small threshold: the session really runs sparse steps, and the belief stays
+// 			within twice the discarded mass of the exact one
+// usage: java SparseFilterSessionTest; exits with 1 if a check fails
+public class SparseFilterSessionTest {
+
+	private static int failed;
+
+	static void check(boolean ok, String what) {
+		System.out.println((ok ? "ok    " : "FAIL  ") + what);
+		if (!ok)
+			failed++;
+	}
+
+	// max |exact - sparse| over the states and the steps
+	// 		stats: number of steps that ended sparse, and the total discarded mass
+	static double compare(BlindRobotMazeProblem p, int[] colors, double massThreshold, int topK, double[] stats) {
+		FilterSession exact = p.newFilterSession();
+		SparseFilterSession sparse = p.newSparseFilterSession(massThreshold, topK);
+		double err = 0;
+		for (int color: colors) {
+			double[] e = exact.update(color);
+			double[] s = sparse.update(color);
+			for (int c = 0; c < e.length; c++)
+				err = Math.max(err, Math.abs(e[c] - s[c]));
+			if (sparse.isSparse())
+				stats[0]++;
+		}
+		stats[1] = sparse.getTotalDiscardedMass();
+		return err;
+	}
+
+	public static void main(String[] args) {
+		double[] stats = new double[2];
+		for (int size: new int[]{10, 50, 120}) {
+			Maze maze = MazeGenerator.generate(size, size, 0.3, size);
+			BlindRobotMazeProblem p = new BlindRobotMazeProblem(maze);
+			double err = compare(p, MazeGenerator.evidence(maze, 500, size), 0, 0, stats);
+			check(err <= 1e-12, String.format("%dx%d threshold 0: max error %.3g", size, size, err));
+		}
+
+		// with slip, where the motion spreads the belief more slowly
+		Maze maze = MazeGenerator.generate(80, 80, 0.2, 7);
+		BlindRobotMazeProblem p = new BlindRobotMazeProblem(maze, new SimpleSensorModel(), 0.2);
+		double err = compare(p, MazeGenerator.evidence(maze, 500, 7), 0, 0, stats);
+		check(err <= 1e-12, String.format("80x80 slip 0.2 threshold 0: max error %.3g", err));
+
+		// pruned: large enough mazes and long enough evidence to localize the robot
+		for (int size: new int[]{120, 200}) {
+			maze = MazeGenerator.generate(size, size, 0.3, size);
+			p = new BlindRobotMazeProblem(maze);
+			int[] colors = MazeGenerator.evidence(maze, 2000, size);
+			stats = new double[2];
+			err = compare(p, colors, 1e-9, 0, stats);
+			// dropping mass d and renormalizing moves the belief by at most 2 d (L1)
+			check(stats[0] > 0 && err <= 2 * stats[1], String.format("%dx%d threshold 1e-9: %d sparse steps, max error %.3g, discarded %.3g",
+					size, size, (int) stats[0], err, stats[1]));
+		}
+
+		if (failed > 0) {
+			System.out.println(failed + " checks failed");
+			System.exit(1);
+		}
+	}
+
+}
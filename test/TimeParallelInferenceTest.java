@@ -0,0 +1,78 @@
+import java.util.Arrays;
+
+
+// TimeParallelInference against the sequential engines on the same evidence
+// 		filter: the last belief and the log-likelihood of FilterSession / filterStep
+// 		viterbi: the path, its log probability and the number of tied paths of getViterbi
+// over mazes with walls (several connected parts) and open ones, with 1 ... 8 segments.
+// usage: java TimeParallelInferenceTest; exits with 1 if a check fails
+public class TimeParallelInferenceTest {
+
+	private static int failed;
+
+	static void check(boolean ok, String what) {
+		System.out.println((ok ? "ok    " : "FAIL  ") + what);
+		if (!ok)
+			failed++;
+	}
+
+	static void compare(String name, BlindRobotMazeProblem p, int[] colors, int threads) {
+		// exact filtering, and log P(c1:t) as the sum of the log normalizers
+		double[] prob = p.initialDistr();
+		double[] next = new double[prob.length];
+		double logLikelihood = 0;
+		for (int color: colors) {
+			logLikelihood += Math.log(p.filterStep(prob, next, color));
+			double[] tmp = prob;
+			prob = next;
+			next = tmp;
+		}
+		ViterbiDecoder.Result seq = p.getViterbi(colors, null);
+
+		TimeParallelInference parallel = new TimeParallelInference(p, threads);
+		try {
+			TimeParallelInference.Filtered filtered = parallel.filter(colors);
+			double err = 0;
+			for (int c = 0; c < prob.length; c++)
+				err = Math.max(err, Math.abs(prob[c] - filtered.getBelief()[c]));
+			double dll = Math.abs(logLikelihood - filtered.getLogLikelihood());
+			check(err <= 1e-12 && dll <= 1e-9 * Math.abs(logLikelihood), String.format(
+					"%s, %d threads: filter max error %.3g, log-likelihood %.6f / %.6f",
+					name, threads, err, logLikelihood, filtered.getLogLikelihood()));
+
+			ViterbiDecoder.Result par = parallel.viterbi(colors);
+			boolean samePath = Arrays.deepEquals(seq.getPath().toArray(), par.getPath().toArray());
+			double dlp = Math.abs(seq.getLogProb() - par.getLogProb());
+			check(samePath && dlp <= 1e-9 * Math.abs(seq.getLogProb()) && seq.getPathCount() == par.getPathCount(), String.format(
+					"%s, %d threads: viterbi same path %b, log P %.6f / %.6f, paths %d / %d",
+					name, threads, samePath, seq.getLogProb(), par.getLogProb(), seq.getPathCount(), par.getPathCount()));
+		} finally {
+			parallel.shutdown();
+		}
+	}
+
+	public static void main(String[] args) {
+		for (int size: new int[]{20, 60}) {
+			for (double walls: new double[]{0, 0.3}) {
+				Maze maze = MazeGenerator.generate(size, size, walls, size);
+				BlindRobotMazeProblem p = new BlindRobotMazeProblem(maze);
+				int[] colors = MazeGenerator.evidence(maze, 10000, size);
+				String name = String.format("%dx%d walls %.1f (%d parts)", size, size, walls,
+						new TimeParallelInference(p, 1).getNumParts());
+				for (int threads: new int[]{1, 2, 3, 8})
+					compare(name, p, colors, threads);
+			}
+		}
+
+		// short evidence: segments of a few steps each
+		Maze maze = MazeGenerator.generate(30, 30, 0.3, 3);
+		BlindRobotMazeProblem p = new BlindRobotMazeProblem(maze);
+		compare("30x30 walls 0.3, 40 steps", p, MazeGenerator.evidence(maze, 40, 3), 8);
+
+		if (failed > 0) {
+			System.out.println(failed + " checks failed");
+			System.exit(1);
+		}
+	}
+
+}